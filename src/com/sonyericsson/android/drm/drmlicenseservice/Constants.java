@@ -110,6 +110,18 @@ public class Constants {
 
     public static final String DRM_KEYPARAM_RETRY_COUNT = "RETRY_COUNT";
 
+    public static final String DRM_KEYPARAM_KEEP_ALIVE = "KEEP_ALIVE";
+
+    public static final String DRM_KEYPARAM_COMPRESS_REQUESTS = "COMPRESS_REQUESTS";
+
+    public static final String DRM_KEYPARAM_RETRY_BUDGET = "RETRY_BUDGET";
+
+    public static final String DRM_KEYPARAM_RETRY_DELAY = "RETRY_DELAY";
+
+    public static final String DRM_KEYPARAM_CIRCUIT_FAILURE_RATE = "CIRCUIT_FAILURE_RATE";
+
+    public static final String DRM_KEYPARAM_CIRCUIT_OPEN_TIME = "CIRCUIT_OPEN_TIME";
+
     public static final String DRM_KEYPARAM_WEB_INITIATOR = "WEB_INITIATOR";
 
     public static final String DRM_KEYPARAM_REDIRECT_URL = "REDIRECT_URL";
@@ -140,6 +152,8 @@ public class Constants {
 
     public static final String DRM_KEYPARAM_RENEW_HEADER = "HEADER";
 
+    public static final String DRM_KEYPARAM_RENEW_FILE_DESCRIPTOR = "FILE_DESCRIPTOR";
+
     public static final int PROGRESS_TYPE_WEBINI_COUNT = 1;
 
     public static final int PROGRESS_TYPE_FINISHED_JOB = 2;
@@ -163,12 +177,14 @@ public class Constants {
     public static final String DLS_INTENT_TYPE = "DLS_INTENT_TYPE";
     public static final int DLS_INTENT_TYPE_TASK = 0;
     public static final int DLS_INTENT_TYPE_FINISHED_WEBI = 1;
+    public static final int DLS_INTENT_TYPE_BATCH = 2;
 
     public static final String DLS_INTENT_SESSION_ID = "dlsSessionId";
     public static final String DLS_INTENT_REQUEST_TYPE = "rtype";
     public static final String DLS_INTENT_ITEMDATA = "ItemData";
     public static final String DLS_INTENT_HTTP_PARAMS = "HttpParameters";
     public static final String DLS_INTENT_CB_PARAMS = "CallbackParameters";
+    public static final String DLS_INTENT_BATCH_ID = "BatchId";
 
     public static final String DLS_CB_PROGRESS_TYPE = "ProgressType";
     public static final String DLS_CB_PATH = "pathForReport";
@@ -183,6 +199,7 @@ public class Constants {
     public static final int HTTP_ERROR_INTERNAL_ERROR = -4;
     public static final int HTTP_ERROR_XML_PARSING_ERROR = -5;
     public static final int HTTP_ERROR_UNHANDLED_ERROR_IN_PK = -6;
+    public static final int HTTP_ERROR_CIRCUIT_OPEN = -7;
     public static final int HTTP_ERROR_CANCELLED = -10; // internal error code for aborted requests
 
     public static final int NOT_AIDL_SESSION = 0;
@@ -192,4 +209,6 @@ public class Constants {
 
     public static final String SCHEME_HTTP = "http";
     public static final String SCHEME_HTTPS = "https";
+    public static final String SCHEME_CONTENT = "content";
+    public static final String SCHEME_FILE = "file";
 }
@@ -36,6 +36,7 @@ import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 import android.widget.Toast;
 
@@ -94,7 +95,7 @@ public class DrmLicenseService extends Service {
         final Uri uri = intent.getData();
         if (header != null ||
             psshBox != null ||
-            (uri != null && Constants.SCHEME_HTTP.equals(uri.getScheme()))) {
+            (uri != null && isRenewableScheme(uri.getScheme()))) {
             Intent serviceintent = new Intent(Constants.TASK_SERVICE);
             serviceintent.putExtra(Constants.DLS_INTENT_REQUEST_TYPE,
                     RequestManager.TYPE_RENEW_RIGHTS);
@@ -111,6 +112,15 @@ public class DrmLicenseService extends Service {
         DrmLog.debug("end");
     }
 
+    /*
+     * Files can be renewed from http, or from content providers which are
+     * parsed in place. File paths are not accepted, the service would open
+     * them with its own permissions on behalf of any caller.
+     */
+    private static boolean isRenewableScheme(String scheme) {
+        return Constants.SCHEME_HTTP.equals(scheme) || Constants.SCHEME_CONTENT.equals(scheme);
+    }
+
     private void handleWebInitiator(final Intent intent) {
         DrmLog.debug("start");
         final Uri uri = intent.getData();
@@ -159,7 +169,7 @@ public class DrmLicenseService extends Service {
                 IDrmLicenseServiceCallback callbackHandler) throws RemoteException {
             DrmLog.debug("start");
             long sessionId = 0;
-            if (uri != null && Constants.SCHEME_HTTP.equals(uri.getScheme())) {
+            if (uri != null && isRenewableScheme(uri.getScheme())) {
                 sessionId = SessionManager.getInstance().startSession(callbackHandler, parameters);
                 Intent serviceintent = new Intent(Constants.TASK_SERVICE);
                 serviceintent.putExtra(Constants.DLS_INTENT_REQUEST_TYPE,
@@ -191,11 +201,16 @@ public class DrmLicenseService extends Service {
                 byte[] psshBox = renewData.getByteArray(Constants.DRM_KEYPARAM_RENEW_PSSH_BOX);
                 String header = renewData.getString(Constants.DRM_KEYPARAM_RENEW_HEADER);
                 String filePath = renewData.getString(Constants.DRM_KEYPARAM_RENEW_FILE_PATH);
+                ParcelFileDescriptor fd = null;
+                if (header == null && psshBox == null) {
+                    fd = renewData.getParcelable(Constants.DRM_KEYPARAM_RENEW_FILE_DESCRIPTOR);
+                }
 
                 if (header != null ||
                     psshBox != null ||
+                    fd != null ||
                     (filePath != null &&
-                     Constants.SCHEME_HTTP.equals(Uri.parse(filePath).getScheme()))) {
+                     isRenewableScheme(Uri.parse(filePath).getScheme()))) {
                     sessionId = SessionManager.getInstance().startSession(callbackHandler,
                             parameters);
                     Intent serviceintent = new Intent(Constants.TASK_SERVICE);
@@ -213,6 +228,12 @@ public class DrmLicenseService extends Service {
                         serviceintent.putExtra(Constants.DRM_KEYPARAM_RENEW_PSSH_BOX, psshBox);
                         callbackParameters.putByteArray(Constants.DRM_KEYPARAM_RENEW_PSSH_BOX,
                                 psshBox);
+                    } else if (fd != null) {
+                        // A descriptor can not be put in an intent, it is
+                        // kept for the task service which reads the header
+                        SessionManager.getInstance().putDescriptor(sessionId, fd);
+                        serviceintent.putExtra(Constants.DRM_KEYPARAM_RENEW_FILE_DESCRIPTOR,
+                                true);
                     } else {
                         serviceintent.putExtra(Constants.DRM_KEYPARAM_RENEW_FILE_URI, filePath);
                         callbackParameters.putString(Constants.DLS_CB_PATH, filePath);
@@ -57,6 +57,24 @@ public class DrmLicenseTaskService extends IntentService {
     protected void onHandleIntent(Intent intent) {
         DrmLog.debug("start");
         Bundle extras = intent.getExtras();
+        WebInitiatorBatch batch = null;
+        if (extras != null && extras.getInt(Constants.DLS_INTENT_TYPE, -1)
+                == Constants.DLS_INTENT_TYPE_BATCH) {
+            // Taken before anything can fail, so that the batch is always released
+            batch = WebInitiatorBatch.take(extras.getLong(Constants.DLS_INTENT_BATCH_ID, -1));
+        }
+        try {
+            handleIntent(extras, batch);
+        } finally {
+            if (batch != null) {
+                WebInitiatorBatch.done(getBaseContext(), batch);
+            }
+        }
+        DrmLog.debug("end");
+    }
+
+    private void handleIntent(Bundle extras, WebInitiatorBatch batch) {
+        DrmLog.debug("start");
         long sessionId = 0;
         int intentType = -1;
 
@@ -85,6 +103,19 @@ public class DrmLicenseTaskService extends IntentService {
                         }
                     }
                     break;
+                case Constants.DLS_INTENT_TYPE_BATCH:
+                    if (batch != null) {
+                        // Groups are run one by one, each reports its own finished job
+                        for (int i = 0; i < batch.size(); i++) {
+                            new RequestManager(getBaseContext(),
+                                    WebInitiatorTaskService.createTaskParameters(batch.get(i),
+                                            batch.getSessionId(), batch.getGroupId(i)),
+                                    mCallback).execute();
+                        }
+                    } else {
+                        DrmLog.debug("Batch no longer available");
+                    }
+                    break;
                 case Constants.DLS_INTENT_TYPE_TASK:
                 default:
                     RequestManager requestManager = new RequestManager(getBaseContext(), extras,
@@ -0,0 +1,296 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is DRM License Service.
+ *
+ * The Initial Developer of the Original Code is Sony Mobile Communications Inc.
+ * Portions created by Sony Mobile Communications Inc. are Copyright (C) 2014
+ * Sony Mobile Communications Inc. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package com.sonyericsson.android.drm.drmlicenseservice;
+
+import com.sonyericsson.android.drm.drmlicenseservice.utils.DrmLog;
+import com.sonyericsson.android.drm.drmlicenseservice.utils.Utils;
+
+import android.content.Context;
+import android.system.StructStat;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Singleton cache of extracted PlayReady headers, stored in the app cache
+ * dir so that renewals of the same content do not parse it again.
+ *
+ * Entries are files named by the SHA-256 of their key. The access order is
+ * kept in memory, a hit only writes to disk when the modification time of
+ * the entry is more than TOUCH_INTERVAL old, which keeps a coarse access
+ * order between restarts. The least recently used entries are evicted when
+ * the cache grows over its bounds.
+ */
+public class HeaderCache {
+
+    private static final String CACHE_DIR = "headers";
+
+    private static final int MAX_ENTRIES = 512;
+
+    private static final long MAX_SIZE = 2 * 1024 * 1024;
+
+    private static final long TOUCH_INTERVAL = 24 * 60 * 60 * 1000L;
+
+    private static HeaderCache s_cache = null;
+
+    private File mDir;
+
+    /*
+     * file name -> size, in access order
+     */
+    private LinkedHashMap<String, Long> mEntries = null;
+
+    private long mSize = 0;
+
+    private int mHits = 0;
+
+    private int mMisses = 0;
+
+    private HeaderCache(File dir) {
+        mDir = dir;
+    }
+
+    /**
+     * Retrieve singleton. Creates new if non-existing.
+     *
+     * @param context
+     * @return singleton
+     */
+    public synchronized static HeaderCache getInstance(Context context) {
+        DrmLog.debug("start");
+        if (s_cache == null) {
+            s_cache = new HeaderCache(new File(context.getCacheDir(), CACHE_DIR));
+        }
+        DrmLog.debug("end");
+        return s_cache;
+    }
+
+    /**
+     * Key for a local file, changes if the file is replaced or modified.
+     */
+    public static String fileKey(File file) {
+        return "file:" + file.getAbsolutePath() + ":" + file.length() + ":"
+                + file.lastModified();
+    }
+
+    /**
+     * Key for a file that has no path, e.g. a descriptor from a content
+     * provider, by the identity of the file as given by fstat and the
+     * default KID of its first encrypted track.
+     *
+     * @param stat of descriptor
+     * @param kid default KID, or null
+     * @return key, null if the file has no default KID
+     */
+    public static String descriptorKey(StructStat stat, byte[] kid) {
+        return (kid != null) ? "fd:" + stat.st_dev + ":" + stat.st_ino + ":" + stat.st_size
+                + ":" + stat.st_mtime + ":" + sha256(kid) : null;
+    }
+
+    /**
+     * Key for a remote file, null if the server did not provide an ETag.
+     */
+    public static String urlKey(String url, String etag) {
+        return (etag != null) ? "url:" + url + "#" + etag : null;
+    }
+
+    /**
+     * @param key from one of the key functions, may be null
+     * @return cached header, or null if not cached
+     */
+    public synchronized String get(String key) {
+        DrmLog.debug("start");
+        String header = null;
+        if (key != null) {
+            load();
+            String name = toName(key);
+            if (mEntries.get(name) != null) {
+                File file = new File(mDir, name);
+                header = read(file);
+                if (header != null) {
+                    long now = System.currentTimeMillis();
+                    if (now - file.lastModified() > TOUCH_INTERVAL) {
+                        file.setLastModified(now);
+                    }
+                } else {
+                    remove(name);
+                }
+            }
+        }
+        if (header != null) {
+            mHits++;
+        } else {
+            mMisses++;
+        }
+        DrmLog.debug("hits " + mHits + ", misses " + mMisses);
+        DrmLog.debug("end");
+        return header;
+    }
+
+    /**
+     * Stores header, evicting least recently used entries if needed.
+     *
+     * @param key from one of the key functions, may be null
+     * @param header to store
+     */
+    public synchronized void put(String key, String header) {
+        DrmLog.debug("start");
+        if (key != null && header != null) {
+            load();
+            String name = toName(key);
+            File tmp = new File(mDir, name + ".tmp");
+            FileOutputStream fos = null;
+            try {
+                byte[] data = header.getBytes("UTF-8");
+                fos = new FileOutputStream(tmp);
+                fos.write(data);
+                fos.close();
+                fos = null;
+                if (tmp.renameTo(new File(mDir, name))) {
+                    remove(name);
+                    mEntries.put(name, (long)data.length);
+                    mSize += data.length;
+                    trim();
+                }
+            } catch (IOException e) {
+                DrmLog.logException(e);
+            } finally {
+                if (fos != null) {
+                    try {
+                        fos.close();
+                    } catch (IOException e) {
+                        DrmLog.logException(e);
+                    }
+                }
+                tmp.delete();
+            }
+        }
+        DrmLog.debug("end");
+    }
+
+    /*
+     * Builds index from cache dir the first time it is needed.
+     */
+    private void load() {
+        if (mEntries != null) {
+            return;
+        }
+        mEntries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            DrmLog.error("Could not create " + mDir);
+            return;
+        }
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            Arrays.sort(files, new Comparator<File>() {
+
+                @Override
+                public int compare(File lhs, File rhs) {
+                    return Long.compare(lhs.lastModified(), rhs.lastModified());
+                }
+            });
+            for (File file : files) {
+                if (file.getName().endsWith(".tmp")) {
+                    file.delete();
+                } else {
+                    mEntries.put(file.getName(), file.length());
+                    mSize += file.length();
+                }
+            }
+        }
+        trim();
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<String, Long>> it = mEntries.entrySet().iterator();
+        while (it.hasNext() && (mEntries.size() > MAX_ENTRIES || mSize > MAX_SIZE)) {
+            Map.Entry<String, Long> eldest = it.next();
+            new File(mDir, eldest.getKey()).delete();
+            mSize -= eldest.getValue();
+            it.remove();
+        }
+    }
+
+    private void remove(String name) {
+        Long size = mEntries.remove(name);
+        if (size != null) {
+            mSize -= size;
+        }
+    }
+
+    private static String read(File file) {
+        String result = null;
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(file);
+            byte[] data = Utils.inputStreamToByteArray(fis);
+            if (data != null) {
+                result = new String(data, "UTF-8");
+            }
+        } catch (IOException e) {
+            DrmLog.logException(e);
+        } finally {
+            if (fis != null) {
+                try {
+                    fis.close();
+                } catch (IOException e) {
+                    DrmLog.logException(e);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static String toName(String key) {
+        try {
+            return sha256(key.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String sha256(byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(String.format("%02x", b & 0xFF));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
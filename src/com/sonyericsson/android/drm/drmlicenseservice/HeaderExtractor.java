@@ -26,23 +26,38 @@ package com.sonyericsson.android.drm.drmlicenseservice;
 import com.sonyericsson.android.drm.drmlicenseservice.UrlConnectionClient.DataHandlerCallback;
 import com.sonyericsson.android.drm.drmlicenseservice.UrlConnectionClient.Response;
 import com.sonyericsson.android.drm.drmlicenseservice.utils.*;
+import com.sonyericsson.android.drm.drmlicenseservice.parser.DataSource;
 import com.sonyericsson.android.drm.drmlicenseservice.parser.DrmPiffParser;
+import com.sonyericsson.android.drm.drmlicenseservice.parser.PiffStreamParser;
+import com.sonyericsson.android.drm.drmlicenseservice.parser.PlayReadyHeader;
+import com.sonyericsson.android.drm.drmlicenseservice.parser.PsshIndex;
 
-import android.annotation.SuppressLint;
 import android.content.Context;
 import android.net.Uri;
-import android.util.Base64;
+import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
 
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
+import java.util.List;
 import java.util.Locale;
 
 public class HeaderExtractor {
 
+    private static final int MAX_PROBE_SIZE = 20 * 1024;
+
+    private static final int MAX_INIT_SEGMENT_SIZE = 1024 * 1024;
+
+    private static final int MAX_FRAGMENT_SCAN_SIZE = 64 * 1024;
+
+    private static final int MAX_SIGNATURE_SCAN_SIZE = 4 * 1024 * 1024;
+
     public static void parseFile(Context context, String fileUri,
             RequestManager.Task task) {
 
@@ -52,52 +67,110 @@ public class HeaderExtractor {
 
         final StringBuffer headerString = new StringBuffer();
 
-        String tempFile = null;
         String scheme = uri.getScheme();
 
+        HeaderCache cache = HeaderCache.getInstance(context);
+        String cacheKey = null;
+
         if ("http".equals(scheme)) {
-            tempFile = getUniqueTempFileName(context, uri.getLastPathSegment());
-            if (tempFile != null) {
-                final boolean manifest = fileUri.toLowerCase(Locale.US).endsWith(".ism/manifest");
-                final String callbackFile = tempFile;
-                DataHandlerCallback dataCallback = new DataHandlerCallback() {
+            final boolean manifest = fileUri.toLowerCase(Locale.US).endsWith(".ism/manifest");
+            String path = uri.getPath();
+            final boolean mpd = path != null && path.toLowerCase(Locale.US).endsWith(".mpd");
+            final String url = uri.toString();
+            final String[] initializationUrl = new String[1];
+
+            Response head = null;
+            if (!manifest && !mpd) {
+                // A HEAD request is much cheaper than probing the file, and
+                // tells if the file has changed since its header was cached.
+                // Manifests are small and parsed as they download, a HEAD
+                // before them would only add a round trip.
+                head = UrlConnectionClient.head(context, task.mDlsSessionId, url, null);
+                if (head != null && head.getStatus() == 200) {
+                    cacheKey = HeaderCache.urlKey(url, head.getHeaderField("ETag"));
+                }
+                String cached = cache.get(cacheKey);
+                if (cached != null) {
+                    DrmLog.debug("header found in cache");
+                    task.mHeader = PlayReadyHeader.parse(cached);
+                    DrmLog.debug("end");
+                    return;
+                }
+            }
+
+            DataHandlerCallback dataCallback = new DataHandlerCallback() {
+
+                public void handleData(InputStream is) {
+                    try {
+                        String header;
+                        if (manifest) {
+                            header = readManifestHeader(is);
+                        } else if (mpd) {
+                            MpdParser parser = MpdParser.parse(is, url);
+                            header = getPlayReadyHeader(parser.getPlayReadyObjects());
+                            initializationUrl[0] = parser.getInitializationUrl();
+                        } else {
+                            header = readHeader(is, new PiffStreamParser(), MAX_PROBE_SIZE);
+                        }
+                        if (header != null) {
+                            DrmLog.debug("header found");
+                            headerString.append(header);
+                        }
+                    } catch (IOException e) {
+                        DrmLog.logException(e);
+                    }
+                }
+
+            };
+
+            boolean probed = false;
+            if (!manifest && !mpd) {
+                // Read only the box headers with range requests, moov may
+                // be anywhere in the file.
+                HttpRangeSource source = HttpRangeSource.open(context, task.mDlsSessionId,
+                        url, head);
+                if (source != null) {
+                    String header = findHeader(source);
+                    DrmLog.debug("probed " + source.getTransferred() + " bytes");
+                    if (header != null) {
+                        DrmLog.debug("header found");
+                        headerString.append(header);
+                    }
+                    if (source.getStatus() == 200) {
+                        // Range was ignored by server, download file instead
+                        headerString.setLength(0);
+                    } else {
+                        probed = true;
+                        if (source.getStatus() != 0) {
+                            task.mHttpError = source.getStatus();
+                            if (source.getInnerStatus() != 0) {
+                                task.mInnerHttpError = source.getInnerStatus();
+                            }
+                        }
+                    }
+                }
+            }
+
+            if (!probed) {
+                Response response = UrlConnectionClient.get(context,
+                        task.mDlsSessionId, url, null, dataCallback, null);
+                handleResponse(response, task);
+            }
+
+            if (headerString.length() == 0 && initializationUrl[0] != null
+                    && task.mHttpError == 0) {
+                // Header is not in the MPD, read it from moov of the
+                // initialization segment instead.
+                DrmLog.debug("reading initialization segment");
+                dataCallback = new DataHandlerCallback() {
 
-                    @SuppressLint("WorldReadableFiles")
                     public void handleData(InputStream is) {
                         try {
-                            FileOutputStream fos = new FileOutputStream(callbackFile, true);
-                            int dataCounter = 0, read;
-                            byte[] buffer = new byte[2048];
-
-                            try {
-                                while ((read = is.read(buffer)) != -1) {
-                                    dataCounter += read;
-                                    fos.write(buffer, 0, read);
-
-                                    String header;
-                                    if (manifest) {
-                                        header = findManifestHeader(callbackFile);
-                                    } else {
-                                        header = findHeader(callbackFile);
-                                    }
-
-                                    if (header != null) {
-                                        DrmLog.debug("header found");
-                                        // We have the header, stop download
-                                        headerString.append(header);
-                                        break;
-                                    }
-
-                                    if (!manifest && dataCounter > 20 * 1024) {
-                                        // PR header has not been found in the
-                                        // first 20kB of the file, it is
-                                        // probably a non-DRM file, stop
-                                        // trying to renew.
-                                        break;
-                                    }
-                                }
-                            } finally {
-                                fos.close();
+                            String header = readHeader(is, new PiffStreamParser(false),
+                                    MAX_INIT_SEGMENT_SIZE);
+                            if (header != null) {
+                                DrmLog.debug("header found");
+                                headerString.append(header);
                             }
                         } catch (IOException e) {
                             DrmLog.logException(e);
@@ -105,19 +178,9 @@ public class HeaderExtractor {
                     }
 
                 };
-
-                Response response = UrlConnectionClient.get(context,
-                        task.mDlsSessionId, uri.toString(), null, dataCallback, null);
-
-                if (response == null) {
-                    task.mHttpError = Constants.HTTP_ERROR_INTERNAL_ERROR;
-                } else if (response.getStatus() != 200) {
-                    task.mHttpError = response.getStatus();
-                    int innerHttpError = response.getInnerStatus();
-                    if (innerHttpError != 0) {
-                        task.mInnerHttpError = innerHttpError;
-                    }
-                }
+                Response response = UrlConnectionClient.get(context, task.mDlsSessionId,
+                        initializationUrl[0], null, dataCallback, null);
+                handleResponse(response, task);
             }
         } else if ((scheme == null || scheme.equals("file"))) {
             File file = null;
@@ -127,7 +190,32 @@ public class HeaderExtractor {
                 DrmLog.logException(e);
             }
             if (file != null && file.exists()) {
-                String header = findHeader(file.getAbsolutePath());
+                cacheKey = HeaderCache.fileKey(file);
+                String header = cache.get(cacheKey);
+                if (header == null) {
+                    header = findHeader(file.getAbsolutePath());
+                } else {
+                    // Already cached, nothing to store
+                    cacheKey = null;
+                }
+                if (header != null && header.length() > 0) {
+                    headerString.append(header);
+                }
+            } else {
+                task.mHttpError = Constants.HTTP_ERROR_INTERNAL_ERROR;
+            }
+        } else if (Constants.SCHEME_CONTENT.equals(scheme)) {
+            // Parsed in place through the descriptor, nothing is copied
+            ParcelFileDescriptor fd = null;
+            try {
+                fd = context.getContentResolver().openFileDescriptor(uri, "r");
+            } catch (FileNotFoundException e) {
+                DrmLog.logException(e);
+            } catch (SecurityException e) {
+                DrmLog.logException(e);
+            }
+            if (fd != null) {
+                String header = findHeader(context, fd);
                 if (header != null && header.length() > 0) {
                     headerString.append(header);
                 }
@@ -137,55 +225,115 @@ public class HeaderExtractor {
         }
         if (headerString.length() > 0) {
             String header = headerString.toString();
-            task.mHeader = header;
+            task.mHeader = PlayReadyHeader.parse(header);
+            cache.put(cacheKey, header);
         } else if (task.mHttpError != Constants.HTTP_ERROR_INTERNAL_ERROR) {
             // The file is not a DRM file
             task.mHttpError = Constants.HTTP_ERROR_UNHANDLED_ERROR_IN_PK;
         }
-        if (tempFile != null) {
-            if (!(new File(tempFile).delete())) {
-                // it's OK if we couldn't delete the file
+        DrmLog.debug("end");
+    }
+
+    /**
+     * Reads header from a file opened by someone else, see
+     * findHeader(Context, ParcelFileDescriptor).
+     *
+     * @param context
+     * @param fd descriptor of file, closed when done, may be null
+     * @param task to update with header or error
+     */
+    public static void parseDescriptor(Context context, ParcelFileDescriptor fd,
+            RequestManager.Task task) {
+        DrmLog.debug("start");
+        String header = (fd != null) ? findHeader(context, fd) : null;
+        if (header != null && header.length() > 0) {
+            task.mHeader = PlayReadyHeader.parse(header);
+        } else if (fd == null) {
+            task.mHttpError = Constants.HTTP_ERROR_INTERNAL_ERROR;
+        } else {
+            // The file is not a DRM file
+            task.mHttpError = Constants.HTTP_ERROR_UNHANDLED_ERROR_IN_PK;
+        }
+        DrmLog.debug("end");
+    }
+
+    private static void handleResponse(Response response, RequestManager.Task task) {
+        if (response == null) {
+            task.mHttpError = Constants.HTTP_ERROR_INTERNAL_ERROR;
+        } else if (response.getStatus() != 200) {
+            task.mHttpError = response.getStatus();
+            int innerHttpError = response.getInnerStatus();
+            if (innerHttpError != 0) {
+                task.mInnerHttpError = innerHttpError;
+            }
+        }
+    }
+
+    /*
+     * Feeds the download to a push parser, each byte is parsed once and
+     * nothing is written to disk.
+     */
+    private static String readHeader(InputStream is, PiffStreamParser parser, int limit)
+            throws IOException {
+        DrmLog.debug("start");
+        byte[] buffer = new byte[2048];
+        int read;
+        while ((read = is.read(buffer)) != -1) {
+            if (parser.feed(buffer, 0, read)) {
+                break;
+            }
+            if (parser.getPosition() > limit) {
+                // PR header has not been found where it is expected to be,
+                // it is probably a non-DRM file, stop trying to renew.
+                break;
             }
         }
         DrmLog.debug("end");
+        return parser.getPlayReadyHeader();
     }
 
-    private static String getUniqueTempFileName(Context context, String inputFilename) {
+    /*
+     * ProtectionHeader is normally at the end of the manifest, the manifest
+     * is parsed once as it is downloaded and the base64 encoded PlayReady
+     * Objects are decoded as the text arrives.
+     */
+    private static String readManifestHeader(InputStream is) {
         DrmLog.debug("start");
-        File directory = new File(context.getCacheDir().getAbsolutePath());
-        String fullpath = null;
-        if (inputFilename == null || inputFilename.length() == 0) {
-            inputFilename = "temp.ismv";
+        String header = null;
+        final Base64Decoder decoder = new Base64Decoder();
+        boolean found = XmlParser.parseElementText(is, "ProtectionHeader",
+                new XmlParser.TextHandler() {
+
+                    @Override
+                    public boolean handleText(String text) {
+                        return decoder.update(text);
+                    }
+                });
+        if (found) {
+            header = getPlayReadyHeader(decoder.toByteArray());
         }
-        if (directory != null) {
-            if (!directory.exists()) {
-                if (!directory.mkdirs()) {
-                    // Should never fail, if it does, try to use it anyway as we
-                    // need a private dir
-                }
+        DrmLog.debug("end");
+        return header;
+    }
+
+    private static String getPlayReadyHeader(byte[] playReadyObjects) {
+        String header = null;
+        if (playReadyObjects != null) {
+            try {
+                header = DrmPiffParser.getPlayReadyHeader(playReadyObjects);
+            } catch (Exception e) {
+                // getPlayReadyHeader failed somewhere, probably a corrupt
+                // header
+                DrmLog.logException(e);
             }
-            String filename;
-            if (!new File(directory, inputFilename).exists()) {
-                filename = inputFilename;
-            } else {
-                String name = inputFilename.replaceAll("\\.[^\\.]*", "");
-                String ext = inputFilename.replaceAll(".*\\.", ".");
-                long count = 0;
-                do {
-                    count--;
-                    filename = name + count + ext;
-                } while (new File(directory, filename).exists());
-            }
-            fullpath = directory + File.separator + filename;
         }
-        DrmLog.debug("end");
-        return fullpath;
+        return header;
     }
 
     public static void parsePSSH(byte[] pssh, RequestManager.Task task) {
         DrmLog.debug("start");
         try {
-            task.mHeader = DrmPiffParser.getPlayReadyHeader(pssh);
+            task.mHeader = DrmPiffParser.parsePlayReadyHeader(pssh);
             if (task.mHeader == null) {
                 task.mHttpError = Constants.HTTP_ERROR_XML_PARSING_ERROR;
             }
@@ -200,30 +348,110 @@ public class HeaderExtractor {
         DrmLog.debug("start");
         String header = null;
         try {
-            DrmPiffParser parser = new DrmPiffParser();
-            header = parser.getPlayReadyHeader(file);
-        } catch (Exception e) {
+            DataSource source = DataSource.open(file);
+            try {
+                header = findLocalHeader(source);
+            } finally {
+                source.close();
+            }
+        } catch (IOException e) {
             DrmLog.logException(e);
         }
         DrmLog.debug("end");
         return header;
     }
 
-    private static String findManifestHeader(String inputFilename) {
+    /**
+     * Reads header from a file opened by someone else, e.g. a content
+     * provider. Only the box headers and pssh boxes are read, with
+     * positional reads on the descriptor. The header is cached by the
+     * identity of the file (device, inode, size and modification time) and
+     * its default KID, which is found without decoding anything.
+     *
+     * @param context
+     * @param fd descriptor of file, closed when done
+     * @return header, or null if not found
+     */
+    public static String findHeader(Context context, ParcelFileDescriptor fd) {
         DrmLog.debug("start");
         String header = null;
-        String protectionHeader = XmlParser.parseXml(new File(inputFilename), "ProtectionHeader");
-        if (protectionHeader != null) {
+        FileInputStream stream = new ParcelFileDescriptor.AutoCloseInputStream(fd);
+        try {
+            DataSource source = DataSource.open(stream.getChannel());
             try {
-                byte[] wrmheader = Base64.decode(protectionHeader, 0);
-                header = DrmPiffParser.getPlayReadyHeader(wrmheader);
-            } catch (Exception e) {
-                // Base64.decode or getPlayReadyHeader failed somewhere,
-                // probably tried to parse incomplete header
+                HeaderCache cache = HeaderCache.getInstance(context);
+                String cacheKey = null;
+                try {
+                    cacheKey = HeaderCache.descriptorKey(Os.fstat(fd.getFileDescriptor()),
+                            DrmPiffParser.getThreadInstance().getDefaultKid(source));
+                } catch (ErrnoException e) {
+                    // Identity of file is unknown, it is not cached
+                    DrmLog.logException(e);
+                }
+                header = cache.get(cacheKey);
+                if (header == null) {
+                    header = findLocalHeader(source);
+                    cache.put(cacheKey, header);
+                }
+            } finally {
+                source.close();
+            }
+        } catch (IOException e) {
+            DrmLog.logException(e);
+        } finally {
+            try {
+                stream.close();
+            } catch (IOException e) {
                 DrmLog.logException(e);
             }
         }
         DrmLog.debug("end");
         return header;
     }
+
+    /*
+     * Tries moov first, then fragments and last a signature scan. Only used
+     * for local files where the fallbacks are cheap.
+     */
+    private static String findLocalHeader(DataSource source) {
+        String header = null;
+        try {
+            DrmPiffParser parser = DrmPiffParser.getThreadInstance();
+            header = parser.getPlayReadyHeader(source);
+            if (header == null) {
+                // Content with rotating keys may only carry pssh in its
+                // fragments, use the first one found.
+                List<PsshIndex> fragments = parser.getFragmentPsshIndexes(source,
+                        MAX_FRAGMENT_SCAN_SIZE);
+                for (PsshIndex fragment : fragments) {
+                    byte[] playReadyObjects = fragment.getPlayReadyObjects();
+                    if (playReadyObjects != null) {
+                        header = DrmPiffParser.getPlayReadyHeader(playReadyObjects);
+                        break;
+                    }
+                }
+            }
+            if (header == null) {
+                // Damaged or non-conformant file, search for the box
+                header = DrmPiffParser.getPlayReadyHeader(
+                        DrmPiffParser.scanPlayReadyObjects(source, MAX_SIGNATURE_SCAN_SIZE));
+            }
+        } catch (Exception e) {
+            DrmLog.logException(e);
+        }
+        return header;
+    }
+
+    private static String findHeader(DataSource source) {
+        DrmLog.debug("start");
+        String header = null;
+        try {
+            DrmPiffParser parser = DrmPiffParser.getThreadInstance();
+            header = parser.getPlayReadyHeader(source);
+        } catch (Exception e) {
+            DrmLog.logException(e);
+        }
+        DrmLog.debug("end");
+        return header;
+    }
 }
@@ -0,0 +1,245 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is DRM License Service.
+ *
+ * The Initial Developer of the Original Code is Sony Mobile Communications Inc.
+ * Portions created by Sony Mobile Communications Inc. are Copyright (C) 2014
+ * Sony Mobile Communications Inc. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package com.sonyericsson.android.drm.drmlicenseservice;
+
+import com.sonyericsson.android.drm.drmlicenseservice.utils.DrmLog;
+
+import android.os.Bundle;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Health of a http server, and circuit breaker for requests towards it.
+ *
+ * The outcome of the last WINDOW_SIZE requests to a host is kept. When the
+ * share of failures reaches CIRCUIT_FAILURE_RATE the circuit opens, and
+ * requests fail at once with HTTP_ERROR_CIRCUIT_OPEN for CIRCUIT_OPEN_TIME
+ * seconds. After that a single probe request is let through, the circuit
+ * closes if it succeeds and opens again if it fails.
+ *
+ * Failures are connection errors, timeouts and 408, 502, 503 and 504
+ * responses. SOAP faults (500) are answers from a working server. Each
+ * request is one sample, its retries are not, so that a single request
+ * retrying against a failing server does not open the circuit by itself.
+ */
+public class HostHealth {
+
+    private static final int WINDOW_SIZE = 20;
+
+    /**
+     * Number of requests needed before the failure rate is considered
+     */
+    private static final int MIN_REQUESTS = 5;
+
+    private static final int DEFAULT_FAILURE_RATE = 50;
+
+    private static final int DEFAULT_OPEN_TIME = 30;
+
+    /**
+     * Number of hosts tracked, the least recently used host is forgotten
+     */
+    private static final int MAX_HOSTS = 32;
+
+    private static final int STATE_CLOSED = 0;
+    private static final int STATE_OPEN = 1;
+    private static final int STATE_HALF_OPEN = 2;
+
+    private static final LinkedHashMap<String, HostHealth> sHosts =
+            new LinkedHashMap<String, HostHealth>(16, 0.75f, true) {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, HostHealth> eldest) {
+            return size() > MAX_HOSTS;
+        }
+    };
+
+    private final String mHost;
+
+    private boolean[] mFailures = new boolean[WINDOW_SIZE];
+
+    private int mNext = 0;
+
+    private int mCount = 0;
+
+    private int mFailureCount = 0;
+
+    private int mTimeouts = 0;
+
+    private long mAverageLatency = 0;
+
+    private int mState = STATE_CLOSED;
+
+    private long mOpenUntil = 0;
+
+    private HostHealth(String host) {
+        mHost = host;
+    }
+
+    /**
+     * @param host name of host, as in urls
+     * @return health of host, created on first use
+     */
+    public static HostHealth get(String host) {
+        synchronized (sHosts) {
+            HostHealth health = sHosts.get(host);
+            if (health == null) {
+                health = new HostHealth(host);
+                sHosts.put(host, health);
+            }
+            return health;
+        }
+    }
+
+    /**
+     * Checks if a request may be sent. When true is returned the outcome
+     * must be reported with onSuccess, onFailure or onAbort.
+     *
+     * @return false if the circuit is open
+     */
+    public synchronized boolean allowRequest() {
+        boolean allowed = true;
+        if (mState == STATE_HALF_OPEN) {
+            // probe is already in progress
+            allowed = false;
+        } else if (mState == STATE_OPEN) {
+            if (System.currentTimeMillis() >= mOpenUntil) {
+                DrmLog.debug("probing " + mHost);
+                mState = STATE_HALF_OPEN;
+            } else {
+                allowed = false;
+            }
+        }
+        return allowed;
+    }
+
+    /**
+     * @param latency milliseconds from request until response
+     * @param sample false for a retry of a request already reported
+     */
+    public synchronized void onSuccess(long latency, boolean sample) {
+        mAverageLatency = (mAverageLatency == 0) ? latency
+                : (mAverageLatency * 7 + latency) / 8;
+        if (mState == STATE_HALF_OPEN) {
+            DrmLog.debug("closing circuit for " + mHost);
+            mState = STATE_CLOSED;
+            mCount = 0;
+            mFailureCount = 0;
+        }
+        if (sample) {
+            add(false);
+        }
+    }
+
+    /**
+     * @param timeout true if the request timed out
+     * @param sample false for a retry of a request already reported, it
+     *            only counts if it is the probe of a half open circuit
+     * @param parameters http parameters of request, CIRCUIT_FAILURE_RATE
+     *            and CIRCUIT_OPEN_TIME are used
+     */
+    public synchronized void onFailure(boolean timeout, boolean sample, Bundle parameters) {
+        int failureRate = DEFAULT_FAILURE_RATE;
+        int openTime = DEFAULT_OPEN_TIME;
+        if (parameters != null) {
+            failureRate = parameters.getInt(Constants.DRM_KEYPARAM_CIRCUIT_FAILURE_RATE,
+                    failureRate);
+            openTime = parameters.getInt(Constants.DRM_KEYPARAM_CIRCUIT_OPEN_TIME, openTime);
+        }
+        if (sample) {
+            if (timeout) {
+                mTimeouts++;
+            }
+            add(true);
+        }
+        if (mState == STATE_HALF_OPEN || (sample && mState == STATE_CLOSED && failureRate > 0
+                && mCount >= MIN_REQUESTS && mFailureCount * 100 >= failureRate * mCount)) {
+            DrmLog.debug("opening circuit for " + mHost + ", " + toString());
+            mState = STATE_OPEN;
+            mOpenUntil = System.currentTimeMillis() + openTime * 1000L;
+        }
+    }
+
+    /**
+     * Reports that an allowed request was not completed, e.g. cancelled.
+     */
+    public synchronized void onAbort() {
+        if (mState == STATE_HALF_OPEN) {
+            // let another request probe
+            mState = STATE_OPEN;
+        }
+    }
+
+    /**
+     * @return true if requests currently fail at once
+     */
+    public synchronized boolean isOpen() {
+        return mState != STATE_CLOSED;
+    }
+
+    /**
+     * @return percent of failed requests among the last WINDOW_SIZE
+     */
+    public synchronized int getFailureRate() {
+        return (mCount > 0) ? mFailureCount * 100 / mCount : 0;
+    }
+
+    /**
+     * @return number of requests that have timed out
+     */
+    public synchronized int getTimeouts() {
+        return mTimeouts;
+    }
+
+    /**
+     * @return moving average of response time in milliseconds
+     */
+    public synchronized long getAverageLatency() {
+        return mAverageLatency;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mHost + " failures " + getFailureRate() + "% of " + mCount + ", timeouts "
+                + mTimeouts + ", latency " + mAverageLatency + " ms";
+    }
+
+    private void add(boolean failure) {
+        if (mCount == WINDOW_SIZE) {
+            if (mFailures[mNext]) {
+                mFailureCount--;
+            }
+        } else {
+            mCount++;
+        }
+        mFailures[mNext] = failure;
+        if (failure) {
+            mFailureCount++;
+        }
+        mNext = (mNext + 1) % WINDOW_SIZE;
+    }
+}
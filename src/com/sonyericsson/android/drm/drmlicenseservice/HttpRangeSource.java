@@ -0,0 +1,186 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is DRM License Service.
+ *
+ * The Initial Developer of the Original Code is Sony Mobile Communications Inc.
+ * Portions created by Sony Mobile Communications Inc. are Copyright (C) 2014
+ * Sony Mobile Communications Inc. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package com.sonyericsson.android.drm.drmlicenseservice;
+
+import com.sonyericsson.android.drm.drmlicenseservice.UrlConnectionClient.DataHandlerCallback;
+import com.sonyericsson.android.drm.drmlicenseservice.UrlConnectionClient.Response;
+import com.sonyericsson.android.drm.drmlicenseservice.parser.DataSource;
+import com.sonyericsson.android.drm.drmlicenseservice.utils.DrmLog;
+
+import android.content.Context;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Source of remote file data, read on demand with http range requests.
+ *
+ * Only the parts of the file that the parser looks at are downloaded, box
+ * headers and the boxes it copies, so a moov at the end of a large file costs
+ * no more than one at the start. The total transfer is capped.
+ */
+public class HttpRangeSource extends DataSource.WindowedSource {
+
+    private static final int WINDOW_SIZE = 8 * 1024;
+
+    private static final long MAX_TRANSFER_SIZE = 1024 * 1024;
+
+    private Context mContext;
+
+    private long mSessionId;
+
+    private String mUrl;
+
+    private long mTransferred = 0;
+
+    private int mStatus = 0;
+
+    private int mInnerStatus = 0;
+
+    private HttpRangeSource(Context context, long sessionId, String url, long size) {
+        super(size, WINDOW_SIZE);
+        mContext = context;
+        mSessionId = sessionId;
+        mUrl = url;
+    }
+
+    /**
+     * Checks the response of a HEAD request for support of byte ranges.
+     *
+     * @param context
+     * @param sessionId 0 for non AIDL sessions.
+     * @param url of file
+     * @param head response of HEAD request towards url
+     * @return source of file data, or null if range requests are not
+     *         supported and the file must be downloaded instead
+     */
+    public static HttpRangeSource open(Context context, long sessionId, String url,
+            Response head) {
+        DrmLog.debug("start");
+        HttpRangeSource source = null;
+        if (head != null && head.getStatus() == 200) {
+            String acceptRanges = head.getHeaderField("Accept-Ranges");
+            long size = -1;
+            try {
+                String contentLength = head.getHeaderField("Content-Length");
+                if (contentLength != null) {
+                    size = Long.parseLong(contentLength.trim());
+                }
+            } catch (NumberFormatException e) {
+                DrmLog.logException(e);
+            }
+            if (acceptRanges != null && size > 0
+                    && acceptRanges.toLowerCase(Locale.US).contains("bytes")) {
+                source = new HttpRangeSource(context, sessionId, url, size);
+            }
+        }
+        DrmLog.debug("end");
+        return source;
+    }
+
+    /**
+     * @return status of last failed range request, or 0
+     */
+    public int getStatus() {
+        return mStatus;
+    }
+
+    /**
+     * @return inner status of last failed range request, or 0
+     */
+    public int getInnerStatus() {
+        return mInnerStatus;
+    }
+
+    /**
+     * @return number of bytes downloaded so far
+     */
+    public long getTransferred() {
+        return mTransferred;
+    }
+
+    @Override
+    protected int read(final ByteBuffer target, long position) throws IOException {
+        DrmLog.debug("start");
+        final int length = (int)Math.min(target.remaining(), size() - position);
+        if (length <= 0) {
+            DrmLog.debug("end");
+            return -1;
+        }
+        if (mTransferred + length > MAX_TRANSFER_SIZE) {
+            throw new IOException("transfer limit reached");
+        }
+        final int start = target.position();
+        DataHandlerCallback dataCallback = new DataHandlerCallback() {
+
+            public void handleData(InputStream is) {
+                if (is == null) {
+                    return;
+                }
+                try {
+                    // Never read more than asked for, in case the server
+                    // ignores the range and sends the whole file.
+                    byte[] buffer = target.array();
+                    int offset = target.arrayOffset() + start;
+                    int read;
+                    while (target.position() - start < length && (read = is.read(buffer,
+                            offset + target.position() - start,
+                            length - (target.position() - start))) != -1) {
+                        target.position(target.position() + read);
+                    }
+                } catch (IOException e) {
+                    DrmLog.logException(e);
+                } finally {
+                    try {
+                        is.close();
+                    } catch (IOException e) {
+                        DrmLog.logException(e);
+                    }
+                }
+            }
+
+        };
+        Response response = UrlConnectionClient.get(mContext, mSessionId, mUrl, null, position,
+                length, dataCallback, null);
+        int read = target.position() - start;
+        mTransferred += read;
+        if (response == null || response.getStatus() != 206 || read <= 0) {
+            target.position(start);
+            if (response != null) {
+                if (response.getStatus() != 206) {
+                    mStatus = response.getStatus();
+                    mInnerStatus = response.getInnerStatus();
+                }
+            } else {
+                mStatus = Constants.HTTP_ERROR_INTERNAL_ERROR;
+            }
+            throw new IOException("range request failed");
+        }
+        DrmLog.debug("end");
+        return read;
+    }
+}
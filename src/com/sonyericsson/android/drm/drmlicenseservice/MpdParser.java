@@ -0,0 +1,309 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is DRM License Service.
+ *
+ * The Initial Developer of the Original Code is Sony Mobile Communications Inc.
+ * Portions created by Sony Mobile Communications Inc. are Copyright (C) 2014
+ * Sony Mobile Communications Inc. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package com.sonyericsson.android.drm.drmlicenseservice;
+
+import com.sonyericsson.android.drm.drmlicenseservice.parser.DrmPiffParser;
+import com.sonyericsson.android.drm.drmlicenseservice.utils.Base64Decoder;
+import com.sonyericsson.android.drm.drmlicenseservice.utils.DrmLog;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * Streaming parser for DASH MPDs.
+ *
+ * Looks for the PlayReady Objects in a ContentProtection element (mspr:pro
+ * or cenc:pssh). If the first protected AdaptationSet does not carry them,
+ * the url of its initialization segment is returned instead so that the
+ * header can be read from moov/pssh. Parsing stops at whichever comes first,
+ * the rest of the MPD is never read.
+ */
+public class MpdParser {
+
+    private static final String NS_MSPR = "urn:microsoft:playready";
+
+    private static final String NS_CENC = "urn:mpeg:cenc:2013";
+
+    private static final String SCHEME_PLAYREADY =
+            "urn:uuid:" + Constants.UUID_PR.toString();
+
+    private static final String
+            TAG_ADAPTATION_SET = "AdaptationSet",
+            TAG_REPRESENTATION = "Representation",
+            TAG_CONTENT_PROTECTION = "ContentProtection",
+            TAG_BASE_URL = "BaseURL",
+            TAG_SEGMENT_TEMPLATE = "SegmentTemplate",
+            TAG_SEGMENT_BASE = "SegmentBase",
+            TAG_INITIALIZATION = "Initialization",
+            TAG_PRO = "pro",
+            TAG_PSSH = "pssh";
+
+    private byte[] mPlayReadyObjects = null;
+
+    private String mInitializationUrl = null;
+
+    /*
+     * Inherited values, indexed by element depth
+     */
+    private ArrayList<String> mBaseUrls = new ArrayList<String>();
+
+    private ArrayList<String> mTemplates = new ArrayList<String>();
+
+    private boolean mProtected = false;
+
+    private int mPlayReadyDepth = -1;
+
+    private Base64Decoder mDecoder = null;
+
+    private String mRepresentationId = null;
+
+    private String mBandwidth = null;
+
+    private String mRepresentationInit = null;
+
+    private StringBuilder mText = null;
+
+    private MpdParser(String mpdUrl) {
+        mBaseUrls.add(mpdUrl);
+        mTemplates.add(null);
+    }
+
+    /**
+     * Parses MPD from stream, reading no more than needed.
+     *
+     * @param is stream of MPD
+     * @param mpdUrl location of MPD, used to resolve relative urls
+     * @return parser holding result, never null
+     */
+    public static MpdParser parse(InputStream is, String mpdUrl) {
+        DrmLog.debug("start");
+        MpdParser mpd = new MpdParser(mpdUrl);
+        try {
+            XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
+            factory.setNamespaceAware(true);
+            XmlPullParser xpp = factory.newPullParser();
+            xpp.setInput(is, null);
+            int eventType = xpp.getEventType();
+            boolean done = false;
+            while (eventType != XmlPullParser.END_DOCUMENT && !done) {
+                switch (eventType) {
+                    case XmlPullParser.START_TAG:
+                        mpd.startTag(xpp);
+                        break;
+                    case XmlPullParser.TEXT:
+                        mpd.text(xpp.getText());
+                        break;
+                    case XmlPullParser.END_TAG:
+                        done = mpd.endTag(xpp);
+                        break;
+                    default:
+                        // do nothing
+                }
+                eventType = xpp.next();
+            }
+        } catch (XmlPullParserException e) {
+            DrmLog.logException(e);
+        } catch (IOException e) {
+            DrmLog.logException(e);
+        }
+        DrmLog.debug("end");
+        return mpd;
+    }
+
+    /**
+     * @return PlayReady Objects found in MPD, or null
+     */
+    public byte[] getPlayReadyObjects() {
+        return mPlayReadyObjects;
+    }
+
+    /**
+     * @return absolute url to initialization segment of first protected
+     *         AdaptationSet, or null
+     */
+    public String getInitializationUrl() {
+        return mInitializationUrl;
+    }
+
+    private void startTag(XmlPullParser xpp) {
+        int depth = xpp.getDepth();
+        String name = xpp.getName();
+        inherit(mBaseUrls, depth);
+        inherit(mTemplates, depth);
+
+        if (TAG_ADAPTATION_SET.equals(name)) {
+            mProtected = false;
+        } else if (TAG_REPRESENTATION.equals(name)) {
+            mRepresentationId = xpp.getAttributeValue(null, "id");
+            mBandwidth = xpp.getAttributeValue(null, "bandwidth");
+            mRepresentationInit = null;
+        } else if (TAG_CONTENT_PROTECTION.equals(name)) {
+            mProtected = true;
+            String scheme = xpp.getAttributeValue(null, "schemeIdUri");
+            if (scheme != null && SCHEME_PLAYREADY.equalsIgnoreCase(scheme)) {
+                mPlayReadyDepth = depth;
+            }
+        } else if (mPlayReadyDepth > 0 && (TAG_PRO.equals(name) && NS_MSPR.equals(
+                xpp.getNamespace()) || TAG_PSSH.equals(name) && NS_CENC.equals(
+                xpp.getNamespace()))) {
+            mDecoder = new Base64Decoder();
+        } else if (TAG_BASE_URL.equals(name)) {
+            mText = new StringBuilder();
+        } else if (TAG_SEGMENT_TEMPLATE.equals(name)) {
+            String init = xpp.getAttributeValue(null, "initialization");
+            if (init != null) {
+                // applies to the parent element and its children
+                mTemplates.set(depth - 1, init);
+                mTemplates.set(depth, init);
+            }
+        } else if (TAG_INITIALIZATION.equals(name)) {
+            String source = xpp.getAttributeValue(null, "sourceURL");
+            mRepresentationInit = (source != null) ? resolve(mBaseUrls.get(depth), source)
+                    : mBaseUrls.get(depth);
+        }
+    }
+
+    private void text(String text) {
+        if (mDecoder != null) {
+            mDecoder.update(text);
+        } else if (mText != null) {
+            mText.append(text);
+        }
+    }
+
+    /*
+     * @return true when parsing can stop
+     */
+    private boolean endTag(XmlPullParser xpp) {
+        int depth = xpp.getDepth();
+        String name = xpp.getName();
+        boolean done = false;
+
+        if (mDecoder != null && (TAG_PRO.equals(name) || TAG_PSSH.equals(name))) {
+            byte[] data = mDecoder.toByteArray();
+            mDecoder = null;
+            if (data != null) {
+                mPlayReadyObjects = TAG_PRO.equals(name) ? data
+                        : DrmPiffParser.getPlayReadyObjectsFromPsshBox(data);
+            }
+            done = mPlayReadyObjects != null;
+        } else if (TAG_CONTENT_PROTECTION.equals(name)) {
+            if (depth == mPlayReadyDepth) {
+                mPlayReadyDepth = -1;
+            }
+        } else if (TAG_BASE_URL.equals(name) && mText != null) {
+            // applies to the parent element and its children
+            mBaseUrls.set(depth - 1, resolve(mBaseUrls.get(depth - 1), mText.toString().trim()));
+            mText = null;
+        } else if (TAG_SEGMENT_BASE.equals(name)) {
+            if (mRepresentationInit == null) {
+                // initialization is at the start of the media file
+                mRepresentationInit = mBaseUrls.get(depth);
+            }
+        } else if (TAG_REPRESENTATION.equals(name)) {
+            if (mProtected && mInitializationUrl == null) {
+                if (mRepresentationInit != null) {
+                    mInitializationUrl = mRepresentationInit;
+                } else if (mTemplates.get(depth) != null) {
+                    mInitializationUrl = resolve(mBaseUrls.get(depth),
+                            substitute(mTemplates.get(depth)));
+                }
+            }
+        } else if (TAG_ADAPTATION_SET.equals(name)) {
+            // Protection is signalled per AdaptationSet, if the first
+            // protected one does not hold the header the MPD will not.
+            done = mProtected && mInitializationUrl != null;
+        }
+        return done;
+    }
+
+    private static void inherit(ArrayList<String> values, int depth) {
+        String parent = values.get(Math.min(depth - 1, values.size() - 1));
+        while (values.size() <= depth) {
+            values.add(parent);
+        }
+        values.set(depth, parent);
+    }
+
+    private static String resolve(String base, String url) {
+        String res = url;
+        try {
+            res = URI.create(base).resolve(url.trim()).toString();
+        } catch (IllegalArgumentException e) {
+            DrmLog.logException(e);
+        }
+        return res;
+    }
+
+    /*
+     * Replaces $RepresentationID$, $Bandwidth$ and $$ identifiers of a
+     * SegmentTemplate, including width formatting such as $Bandwidth%08d$.
+     */
+    private String substitute(String template) {
+        StringBuilder res = new StringBuilder();
+        int pos = 0;
+        while (pos < template.length()) {
+            int start = template.indexOf('$', pos);
+            int end = (start >= 0) ? template.indexOf('$', start + 1) : -1;
+            if (end < 0) {
+                res.append(template, pos, template.length());
+                break;
+            }
+            res.append(template, pos, start);
+            String identifier = template.substring(start + 1, end);
+            String format = null;
+            int formatStart = identifier.indexOf('%');
+            if (formatStart >= 0) {
+                format = identifier.substring(formatStart);
+                identifier = identifier.substring(0, formatStart);
+            }
+            if (identifier.length() == 0) {
+                res.append('$');
+            } else if ("RepresentationID".equals(identifier) && mRepresentationId != null) {
+                res.append(mRepresentationId);
+            } else if ("Bandwidth".equals(identifier) && mBandwidth != null) {
+                if (format != null) {
+                    try {
+                        res.append(String.format(Locale.US, format, Long.parseLong(mBandwidth)));
+                    } catch (RuntimeException e) {
+                        res.append(mBandwidth);
+                    }
+                } else {
+                    res.append(mBandwidth);
+                }
+            } else {
+                res.append(template, start, end + 1);
+            }
+            pos = end + 1;
+        }
+        return res.toString();
+    }
+}
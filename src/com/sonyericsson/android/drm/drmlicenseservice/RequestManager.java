@@ -25,14 +25,13 @@ package com.sonyericsson.android.drm.drmlicenseservice;
 
 import com.sonyericsson.android.drm.drmlicenseservice.UrlConnectionClient.Response;
 import com.sonyericsson.android.drm.drmlicenseservice.UrlConnectionClient.RetryCallback;
+import com.sonyericsson.android.drm.drmlicenseservice.parser.PlayReadyHeader;
 import com.sonyericsson.android.drm.drmlicenseservice.utils.*;
 
 import android.content.Context;
 import android.media.MediaDrm;
 import android.media.MediaDrm.KeyRequest;
 import android.os.Bundle;
-import java.io.InputStreamReader;
-import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.util.HashMap;
 import java.util.Stack;
@@ -68,12 +67,9 @@ public class RequestManager {
             PROCESS_TYPE_LEAVE_DOMAIN = TYPE_LEAVE_DOMAIN + TYPE_DIFF;
 
     private static final String
-            STATUS_CODE = "StatusCode",
             REDIRECT_URL = "RedirectUrl",
             CUSTOMDATA = "CustomData",
             REVISION = "Revision",
-            ACCOUNT_ID = "AccountId",
-            SERVICE_ID = "ServiceId",
             WEBI_ACCOUNT_ID = "AccountID",
             WEBI_DS_ID = "DS_ID",
             WEBI_DOMAIN_CONTROLLER = "DomainController",
@@ -178,12 +174,12 @@ public class RequestManager {
                 if (task.mHeader == null) {
                     DrmLog.debug("end");
                     return null;
-                } else if (!XmlParser.isValidXml(task.mHeader)) {
+                } else if (!task.mHeader.isValid()) {
                     task.mHttpError = Constants.HTTP_ERROR_XML_PARSING_ERROR;
                     DrmLog.debug("end");
                     return null;
                 }
-                request.put(Constants.DRM_HEADER, task.mHeader);
+                request.put(Constants.DRM_HEADER, task.mHeader.toXml());
                 if ((customData = task.getCustomData())  != null) {
                     request.put(Constants.DRM_CUSTOM_DATA, customData);
                 }
@@ -366,10 +362,10 @@ public class RequestManager {
         if (httpResponse != null) {
             switch (httpResponse.getStatus()) {
                 case 200:
-                    currentTask.mLastHttpResponseData = httpResponse.getData();
-                    if (currentTask.mLastHttpResponseData != null) {
+                    currentTask.mLastHttpResponse = SoapResponse.parse(httpResponse.getData());
+                    if (currentTask.mLastHttpResponse != null) {
                         currentTask.mCustomDataInResponse =
-                                XmlParser.parseXml(currentTask.mLastHttpResponseData, CUSTOMDATA);
+                                currentTask.mLastHttpResponse.get(SoapResponse.CUSTOM_DATA);
                         switch (currentTask.type) {
                             case TYPE_ACQUIRE_LICENSE:
                                 currentTask.type = TYPE_ACKNOWLEDGE_LICENSE;
@@ -384,10 +380,10 @@ public class RequestManager {
                     }
                     break;
                 case 500:
-                    HashMap<String, String> errorData = XmlParser.parseXml(httpResponse.getData());
-                    if (errorData != null) {
-                        String errorCode = errorData.get(STATUS_CODE);
-                        String redirectUrl = errorData.get(REDIRECT_URL);
+                    SoapResponse errorData = SoapResponse.parse(httpResponse.getData());
+                    if (errorData != null && errorData.isValid()) {
+                        String errorCode = errorData.get(SoapResponse.STATUS_CODE);
+                        String redirectUrl = errorData.get(SoapResponse.REDIRECT_URL);
                         if (currentTask.type == TYPE_ACQUIRE_LICENSE) {
                             if ((ERROR_DOMAIN_REQUIRED.equals(errorCode) ||
                                     ERROR_RENEW_DOMAIN.equals(errorCode))) {
@@ -431,15 +427,9 @@ public class RequestManager {
                         currentTask.mInnerHttpError = httpResponse.getStatus();
                     } else {
                         if (httpResponse.mRedirect != null) {
-                            String pre = "<LA_URL>", post = "</LA_URL>";
-                            int start = currentTask.mHeader.indexOf(pre) + pre.length();
-                            int end = currentTask.mHeader.indexOf(post);
-                            String currentUrl = currentTask.mHeader.substring(start, end);
-                            // Apply XML character-entity encoding to '&' in redirect url
-                            String newUrl = httpResponse.mRedirect.replaceAll("&(?!amp;)", "&amp;");
                             currentTask.mUrlUsed = httpResponse.mRedirect;
-                            currentTask.mHeader = currentTask.mHeader.replace(pre + currentUrl
-                                    + post, pre + newUrl + post);
+                            currentTask.mHeader = currentTask.mHeader.withLaUrl(
+                                    httpResponse.mRedirect);
                             currentTask.lastType = -1; // reset task
                             mTasks.add(currentTask);
                             isOk = true;
@@ -478,8 +468,8 @@ public class RequestManager {
         public String mServiceId = Constants.ALL_ZEROS_DRM_ID;
         public String mAccountId = Constants.ALL_ZEROS_DRM_ID;
         public String mRevision = "0";
-        public byte[] mLastHttpResponseData;
-        public String mHeader = null;
+        public SoapResponse mLastHttpResponse;
+        public PlayReadyHeader mHeader = null;
 
         public String mUrlUsed = null;
         public String mParsedCustomData = null;
@@ -515,11 +505,20 @@ public class RequestManager {
             switch (type) {
                 case TYPE_RENEW_RIGHTS:
                     if (taskParams.containsKey(Constants.DRM_KEYPARAM_RENEW_HEADER)) {
-                        mHeader = taskParams.getString(Constants.DRM_KEYPARAM_RENEW_HEADER);
+                        mHeader = PlayReadyHeader.parse(
+                                taskParams.getString(Constants.DRM_KEYPARAM_RENEW_HEADER));
                     } else if (taskParams.containsKey(Constants.DRM_KEYPARAM_RENEW_PSSH_BOX)) {
                         HeaderExtractor.parsePSSH(
                                 taskParams.getByteArray(Constants.DRM_KEYPARAM_RENEW_PSSH_BOX),
                                 this);
+                    } else if (taskParams.getBoolean(
+                            Constants.DRM_KEYPARAM_RENEW_FILE_DESCRIPTOR, false)) {
+                        HeaderExtractor.parseDescriptor(mContext,
+                                SessionManager.getInstance().takeDescriptor(mDlsSessionId), this);
+                        if (mHeader != null && mCallbackParameters != null) {
+                            mCallbackParameters.putString(Constants.DRM_KEYPARAM_RENEW_HEADER,
+                                    mHeader.toXml());
+                        }
                     } else {
                         HeaderExtractor.parseFile(mContext,
                                 taskParams.getString(Constants.DRM_KEYPARAM_RENEW_FILE_URI), this);
@@ -527,7 +526,7 @@ public class RequestManager {
                     this.type = TYPE_ACQUIRE_LICENSE;
                     break;
                 case TYPE_ACQUIRE_LICENSE:
-                    mHeader = data.get(WEBI_HEADER);
+                    mHeader = PlayReadyHeader.parse(data.get(WEBI_HEADER));
                     mParsedCustomData = data.get(CUSTOMDATA);
                     mLuiUrl = data.get(WEBI_LUI_URL);
                     break;
@@ -566,7 +565,8 @@ public class RequestManager {
             retryCallback = new RetryCallback() {
 
                 @Override
-                public void retryingUrl(int httpError, int innerHttpError, String url) {
+                public void retryingUrl(int httpError, int innerHttpError, String url,
+                        long delay) {
                     DrmLog.debug("start");
                     if (fSessionId > Constants.NOT_AIDL_SESSION) {
                         Bundle parameters = (mCallbackParameters == null) ? new Bundle()
@@ -574,6 +574,7 @@ public class RequestManager {
                         parameters.putString(Constants.DRM_KEYPARAM_URL, url);
                         parameters.putInt(Constants.DRM_KEYPARAM_HTTP_ERROR, httpError);
                         parameters.putInt(Constants.DRM_KEYPARAM_INNER_HTTP_ERROR, innerHttpError);
+                        parameters.putLong(Constants.DRM_KEYPARAM_RETRY_DELAY, delay);
                         SessionManager.getInstance().callback(fSessionId,
                                 Constants.PROGRESS_TYPE_HTTP_RETRYING, true, parameters);
                     }
@@ -589,7 +590,7 @@ public class RequestManager {
          * NOTE: in case derived task fails we need to report that task, therefore we clone
          * callback parameters so we get correct GroupId and Groups count
          */
-        private Task deriveDomainJob(boolean renew, HashMap<String, String> errorData) {
+        private Task deriveDomainJob(boolean renew, SoapResponse errorData) {
             DrmLog.debug("start");
             Task joinDomainTask = new Task(TYPE_JOIN_DOMAIN);
             joinDomainTask.mHeader = mHeader;
@@ -659,46 +660,34 @@ public class RequestManager {
             return res;
         }
 
+        /*
+         * The response is decoded once when it arrives, the same text is
+         * handed to MediaDrm.
+         */
         private String getLastHttpResponseString() {
-            DrmLog.debug("start");
-            StringBuffer res = new StringBuffer();
-            InputStreamReader isr = Utils.getInputStreamReader(mLastHttpResponseData);
-            if (isr != null) {
-                char[] buffer = new char[1024];
-                int read = 0;
-                try {
-                    while ((read = isr.read(buffer, 0, buffer.length)) > -1) {
-                        res.append(new String(buffer, 0 ,read));
-                    }
-                    isr.close();
-                } catch (IOException e) {
-                    DrmLog.logException(e);
-                }
-
-            }
-            DrmLog.debug("end");
-            return res.toString();
+            return (mLastHttpResponse != null) ? mLastHttpResponse.getText() : "";
         }
 
-        private void parseErrorData(boolean renew, HashMap<String, String> errorData) {
+        private void parseErrorData(boolean renew, SoapResponse errorData) {
             DrmLog.debug("start");
-            mServiceId = errorData.get(SERVICE_ID);
+            mServiceId = errorData.get(SoapResponse.SERVICE_ID);
             if (mServiceId == null) {
                 mServiceId = Constants.ALL_ZEROS_DRM_ID;
             }
-            mAccountId = errorData.get(ACCOUNT_ID);
+            mAccountId = errorData.get(SoapResponse.ACCOUNT_ID);
             if (mAccountId == null) {
                 mAccountId = Constants.ALL_ZEROS_DRM_ID;
             }
-            mUrlUsed = (errorData.get(REDIRECT_URL) != null) ? errorData
-                    .get(REDIRECT_URL) : mUrlUsed;
+            mUrlUsed = (errorData.get(SoapResponse.REDIRECT_URL) != null) ? errorData
+                    .get(SoapResponse.REDIRECT_URL) : mUrlUsed;
             mRedirectURL = mUrlUsed; // Redirect url for callback
 
-            String customData = errorData.get(CUSTOMDATA);
+            String customData = errorData.get(SoapResponse.CUSTOM_DATA);
             if (renew) {
                 mRevision = (customData != null) ? customData : mRevision;
             } else {
-                mRevision = (errorData.get(REVISION) != null) ? errorData.get(REVISION) : mRevision;
+                mRevision = (errorData.get(SoapResponse.REVISION) != null)
+                        ? errorData.get(SoapResponse.REVISION) : mRevision;
                 mParsedCustomData = (customData != null) ? customData : mParsedCustomData;
             }
             DrmLog.debug("end");
@@ -748,7 +737,7 @@ public class RequestManager {
         private void parseForLuiUrl() {
             DrmLog.debug("start");
             if (mHeader != null) {
-                mLuiUrl = XmlParser.parseXml(mHeader, "LUI_URL");
+                mLuiUrl = mHeader.getLuiUrl();
             }
             DrmLog.debug("end");
         }
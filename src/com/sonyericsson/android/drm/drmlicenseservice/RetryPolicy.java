@@ -0,0 +1,142 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is DRM License Service.
+ *
+ * The Initial Developer of the Original Code is Sony Mobile Communications Inc.
+ * Portions created by Sony Mobile Communications Inc. are Copyright (C) 2014
+ * Sony Mobile Communications Inc. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package com.sonyericsson.android.drm.drmlicenseservice;
+
+import com.sonyericsson.android.drm.drmlicenseservice.utils.DrmLog;
+
+import android.os.Bundle;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Decides if and when a failed http request is retried.
+ *
+ * Delays grow exponentially from BASE_DELAY up to TIME_OUT and a random
+ * delay between zero and that limit is used (full jitter), so that devices
+ * that failed at the same time do not retry at the same time. A
+ * Retry-After header from the server is used as is. Retries of all
+ * requests in a session are limited by RETRY_BUDGET.
+ */
+public class RetryPolicy {
+
+    private static final long BASE_DELAY = 1000;
+
+    /**
+     * Retry-After longer than this gives up instead of blocking the queue
+     */
+    private static final long MAX_RETRY_AFTER = 5 * 60 * 1000;
+
+    private static final int DEFAULT_RETRY_LIMIT = 5;
+
+    private static final int DEFAULT_TIMEOUT = 60;
+
+    private static final int DEFAULT_RETRY_BUDGET = 20;
+
+    private static final String HTTP_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
+
+    private static final Random sRandom = new Random();
+
+    private final long mSessionId;
+
+    private int mRetryLimit = DEFAULT_RETRY_LIMIT;
+
+    private long mMaxDelay = DEFAULT_TIMEOUT * 1000;
+
+    private int mRetryBudget = DEFAULT_RETRY_BUDGET;
+
+    /**
+     * @param sessionId dls session id, NOT_AIDL_SESSION has no retry budget
+     * @param parameters http parameters of session, RETRY_COUNT, TIME_OUT
+     *            and RETRY_BUDGET are used
+     */
+    public RetryPolicy(long sessionId, Bundle parameters) {
+        mSessionId = sessionId;
+        if (parameters != null) {
+            int value = parameters.getInt(Constants.DRM_KEYPARAM_RETRY_COUNT, -1);
+            mRetryLimit = (value >= 0) ? value : mRetryLimit;
+            value = parameters.getInt(Constants.DRM_KEYPARAM_TIME_OUT, -1);
+            mMaxDelay = (value > 0) ? value * 1000L : mMaxDelay;
+            value = parameters.getInt(Constants.DRM_KEYPARAM_RETRY_BUDGET, -1);
+            mRetryBudget = (value >= 0) ? value : mRetryBudget;
+        }
+    }
+
+    /**
+     * Gets delay before next retry of a request.
+     *
+     * @param retryCount number of retries made so far for the request
+     * @param retryAfter value of Retry-After header in response, or null
+     * @return delay in milliseconds, or -1 if the request should not be
+     *         retried
+     */
+    public long getDelay(int retryCount, String retryAfter) {
+        DrmLog.debug("start");
+        long delay = -1;
+        long serverDelay = parseRetryAfter(retryAfter);
+        if (retryCount < mRetryLimit && serverDelay <= MAX_RETRY_AFTER
+                && SessionManager.getInstance().useRetry(mSessionId, mRetryBudget)) {
+            if (serverDelay >= 0) {
+                delay = serverDelay;
+            } else {
+                long ceiling = Math.min(mMaxDelay, BASE_DELAY << Math.min(retryCount, 20));
+                delay = (long)(sRandom.nextDouble() * ceiling);
+            }
+        }
+        DrmLog.debug("delay " + delay);
+        DrmLog.debug("end");
+        return delay;
+    }
+
+    /**
+     * Parses a Retry-After header, in seconds or as a http date.
+     *
+     * @param value of header, may be null
+     * @return delay in milliseconds, or -1 if value is missing or invalid
+     */
+    public static long parseRetryAfter(String value) {
+        long delay = -1;
+        if (value != null) {
+            value = value.trim();
+            try {
+                delay = Long.parseLong(value) * 1000;
+            } catch (NumberFormatException e) {
+                SimpleDateFormat format = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
+                format.setTimeZone(TimeZone.getTimeZone("GMT"));
+                try {
+                    Date date = format.parse(value);
+                    delay = Math.max(0, date.getTime() - System.currentTimeMillis());
+                } catch (ParseException pe) {
+                    DrmLog.debug("Invalid Retry-After " + value);
+                }
+            }
+        }
+        return (delay >= 0) ? delay : -1;
+    }
+}
@@ -27,9 +27,11 @@ import com.sonyericsson.android.drm.drmlicenseservice.utils.DrmLog;
 
 import android.os.Bundle;
 import android.os.DeadObjectException;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 import android.util.LongSparseArray;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -46,6 +48,9 @@ public class SessionManager {
     private LongSparseArray<IDrmLicenseServiceCallback> mCallbackHandlers;
     private LongSparseArray<Bundle> mTrafficParameters;
     private LongSparseArray<Boolean> mGroupStatus;
+    private LongSparseArray<ArrayList<HeldReport>> mHeldGroupReports;
+    private LongSparseArray<Integer> mRetriesUsed;
+    private LongSparseArray<ParcelFileDescriptor> mDescriptors;
 
     private static final int MAX_NUMBER_CALLBACKS = 100;
 
@@ -58,6 +63,9 @@ public class SessionManager {
         mCancelledSessions = new ArrayList<Long>();
         mSessions = new ArrayList<Long>();
         mGroupStatus = new LongSparseArray<Boolean>();
+        mHeldGroupReports = new LongSparseArray<ArrayList<HeldReport>>();
+        mRetriesUsed = new LongSparseArray<Integer>();
+        mDescriptors = new LongSparseArray<ParcelFileDescriptor>();
         mStoredCallbacks = new ArrayList<SessionManager.StoredCallback>();
         DrmLog.debug("end");
     }
@@ -186,6 +194,70 @@ public class SessionManager {
         return parameters;
     }
 
+    /**
+     * Counts a http retry against the retry budget of a session.
+     *
+     * @param sessionId session of request, NOT_AIDL_SESSION has no budget
+     * @param budget max number of retries in session
+     * @return true if the retry may be made
+     */
+    public boolean useRetry(long sessionId, int budget) {
+        DrmLog.debug("start");
+        boolean allowed = true;
+        if (sessionId > Constants.NOT_AIDL_SESSION) {
+            try {
+                mLock.lock();
+                int used = mRetriesUsed.get(sessionId, 0);
+                allowed = used < budget;
+                if (allowed) {
+                    mRetriesUsed.put(sessionId, used + 1);
+                }
+            } finally {
+                mLock.unlock();
+            }
+        }
+        DrmLog.debug("end");
+        return allowed;
+    }
+
+    /**
+     * Keeps a file descriptor for the task service. A descriptor can not be
+     * put in an intent, but the task service runs in the same process.
+     *
+     * @param sessionId session that will read the file
+     * @param fd descriptor, closed with the session if never taken
+     */
+    public void putDescriptor(long sessionId, ParcelFileDescriptor fd) {
+        DrmLog.debug("start");
+        try {
+            mLock.lock();
+            closeDescriptor(sessionId);
+            mDescriptors.put(sessionId, fd);
+        } finally {
+            mLock.unlock();
+        }
+        DrmLog.debug("end");
+    }
+
+    /**
+     * @param sessionId session that reads the file
+     * @return descriptor kept by putDescriptor, the caller closes it, or
+     *         null if there is none
+     */
+    public ParcelFileDescriptor takeDescriptor(long sessionId) {
+        DrmLog.debug("start");
+        ParcelFileDescriptor fd;
+        try {
+            mLock.lock();
+            fd = mDescriptors.get(sessionId);
+            mDescriptors.remove(sessionId);
+        } finally {
+            mLock.unlock();
+        }
+        DrmLog.debug("end");
+        return fd;
+    }
+
     /**
      * Cancel session. Aborts any HTTP requests in progress. And prevents any
      * other tasks in queue for this session to be executed.
@@ -277,7 +349,39 @@ public class SessionManager {
         DrmLog.debug("start");
         try {
             mLock.lock();
-            tryToSendCallback(buildCallback(sessionId, state, status, parameters));
+            ArrayList<HeldReport> held = mHeldGroupReports.get(sessionId);
+            if (held != null && state == Constants.PROGRESS_TYPE_FINISHED_JOB) {
+                held.add(new HeldReport(status, parameters));
+            } else {
+                tryToSendCallback(buildCallback(sessionId, state, status, parameters));
+                if (held != null && state == Constants.PROGRESS_TYPE_WEBINI_COUNT) {
+                    releaseGroupReports(sessionId, held,
+                            parameters.getInt(Constants.DRM_KEYPARAM_GROUP_COUNT, -1));
+                }
+            }
+        } finally {
+            mLock.unlock();
+        }
+        DrmLog.debug("end");
+    }
+
+    /**
+     * Holds back finished job reports of a web initiator session until the
+     * number of groups is reported. Groups are started while the initiator
+     * is still being parsed, before the number of groups is known, but the
+     * client still gets the count first and in each finished job report.
+     * Held reports are kept as HeldReport, without any Bundle, so that
+     * initiators with thousands of groups can be held.
+     *
+     * @param sessionId dls session id
+     */
+    public void holdGroupReports(long sessionId) {
+        DrmLog.debug("start");
+        try {
+            mLock.lock();
+            if (mHeldGroupReports.get(sessionId) == null) {
+                mHeldGroupReports.put(sessionId, new ArrayList<HeldReport>());
+            }
         } finally {
             mLock.unlock();
         }
@@ -381,6 +485,8 @@ public class SessionManager {
                 if (url != null) {
                     reportParameters.putString(Constants.DRM_KEYPARAM_URL, url);
                 }
+                reportParameters.putLong(Constants.DRM_KEYPARAM_RETRY_DELAY,
+                        parameters.getLong(Constants.DRM_KEYPARAM_RETRY_DELAY, 0));
                 break;
             default:
                 DrmLog.debug("Error no such case");
@@ -392,6 +498,20 @@ public class SessionManager {
         return new StoredCallback(sessionId, state, status, reportParameters);
     }
 
+    /*
+     * Not thread safe, lock handled in public function callback
+     */
+    private void releaseGroupReports(long sessionId, ArrayList<HeldReport> held,
+            int groups) {
+        DrmLog.debug("start");
+        mHeldGroupReports.remove(sessionId);
+        for (HeldReport report : held) {
+            tryToSendCallback(buildCallback(sessionId, Constants.PROGRESS_TYPE_FINISHED_JOB,
+                    report.mStatus, report.toParameters(groups)));
+        }
+        DrmLog.debug("end");
+    }
+
     /*
      * Not thread safe, lock handled in public function map
      */
@@ -486,9 +606,27 @@ public class SessionManager {
         mTrafficParameters.remove(sessionId);
         mSessions.remove(sessionId);
         mGroupStatus.remove(sessionId);
+        mHeldGroupReports.remove(sessionId);
+        mRetriesUsed.remove(sessionId);
+        closeDescriptor(sessionId);
         DrmLog.debug("end");
     }
 
+    /*
+     * Not thread safe, lock handled in public functions
+     */
+    private void closeDescriptor(long sessionId) {
+        ParcelFileDescriptor fd = mDescriptors.get(sessionId);
+        if (fd != null) {
+            mDescriptors.remove(sessionId);
+            try {
+                fd.close();
+            } catch (IOException e) {
+                DrmLog.logException(e);
+            }
+        }
+    }
+
     /*
      * Not thread safe, lock handled in public function callback/map
      */
@@ -533,6 +671,45 @@ public class SessionManager {
         DrmLog.debug("end");
     }
 
+    /*
+     * Finished job report waiting for the number of groups, only the values
+     * used by buildCallback are kept.
+     */
+    private static class HeldReport {
+        boolean mStatus;
+        int mGroup;
+        String mType;
+        String mPath;
+        String mCustomData;
+        String mRedirectUrl;
+        int mHttpError;
+        int mInnerHttpError;
+
+        public HeldReport(boolean status, Bundle parameters) {
+            mStatus = status;
+            mGroup = parameters.getInt(Constants.DRM_KEYPARAM_GROUP_NUMBER, -1);
+            mType = parameters.getString(Constants.DRM_KEYPARAM_TYPE);
+            mPath = parameters.getString(Constants.DLS_CB_PATH);
+            mCustomData = parameters.getString(Constants.DRM_KEYPARAM_CUSTOM_DATA);
+            mRedirectUrl = parameters.getString(Constants.DRM_KEYPARAM_REDIRECT_URL);
+            mHttpError = parameters.getInt(Constants.DRM_KEYPARAM_HTTP_ERROR, 0);
+            mInnerHttpError = parameters.getInt(Constants.DRM_KEYPARAM_INNER_HTTP_ERROR, 0);
+        }
+
+        public Bundle toParameters(int groups) {
+            Bundle parameters = new Bundle();
+            parameters.putInt(Constants.DRM_KEYPARAM_GROUP_COUNT, groups);
+            parameters.putInt(Constants.DRM_KEYPARAM_GROUP_NUMBER, mGroup);
+            parameters.putString(Constants.DRM_KEYPARAM_TYPE, mType);
+            parameters.putString(Constants.DLS_CB_PATH, mPath);
+            parameters.putString(Constants.DRM_KEYPARAM_CUSTOM_DATA, mCustomData);
+            parameters.putString(Constants.DRM_KEYPARAM_REDIRECT_URL, mRedirectUrl);
+            parameters.putInt(Constants.DRM_KEYPARAM_HTTP_ERROR, mHttpError);
+            parameters.putInt(Constants.DRM_KEYPARAM_INNER_HTTP_ERROR, mInnerHttpError);
+            return parameters;
+        }
+    }
+
     private static class StoredCallback {
         long mSessionId;
         int mState;
@@ -34,26 +34,153 @@ import android.os.Build;
 import android.os.Bundle;
 import android.util.LongSparseArray;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.ConnectException;
 import java.net.HttpURLConnection;
+import java.net.ProtocolException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.net.URI;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 
 public class UrlConnectionClient {
 
     /**
-     * Keep track of current request.
-     * Size 2, since service can have one request from
-     * RequestManager and one from WebInitiatorManager.
+     * Keep track of current requests of each session, with the asynchronous
+     * functions a session can have several requests in flight.
      */
-    private static final LongSparseArray<Request> mIdMap = new LongSparseArray<Request>(2);
+    private static final LongSparseArray<Set<Request>> mIdMap =
+            new LongSparseArray<Set<Request>>(2);
+
+    private static final ThreadFactory sThreadFactory = new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "UrlConnectionClient");
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    /**
+     * Runs request attempts. Threads are created when needed and are only
+     * held while an attempt is in progress.
+     */
+    private static final ExecutorService sWorkers = Executors.newCachedThreadPool(sThreadFactory);
+
+    /**
+     * Schedules retries, no thread is held while a request waits to be retried.
+     */
+    private static final ScheduledExecutorService sTimer =
+            Executors.newSingleThreadScheduledExecutor(sThreadFactory);
+
+    /**
+     * Transports selected per host, other hosts use sDefaultTransport
+     */
+    private static final HashMap<String, Transport> sTransports = new HashMap<String, Transport>();
+
+    private static final Transport sDefaultTransport = new UrlConnectionTransport();
+
+    private static final String ACCEPT_ENCODING = "gzip, deflate";
+
+    /**
+     * A way of sending http requests, e.g. HttpURLConnection
+     */
+    public interface Transport {
+
+        /**
+         * Creates an exchange towards url. Transports that can not be used
+         * with the server, e.g. when a protocol is not negotiated, throw
+         * ProtocolException and the default transport is used for the host
+         * from then on.
+         *
+         * @param url target of request
+         * @return exchange, nothing is sent until the request body or the
+         *         response is requested
+         */
+        public Exchange open(URL url) throws IOException;
+    }
+
+    /**
+     * One http request and its response
+     */
+    public interface Exchange {
+
+        public URL getURL();
+
+        /**
+         * @param method e.g. GET (default), POST or HEAD
+         */
+        public void setRequestMethod(String method) throws IOException;
+
+        public void setRequestProperty(String name, String value);
+
+        /**
+         * @param millis connect and read timeout
+         */
+        public void setTimeout(int millis);
+
+        /**
+         * Starts the request and returns a stream for its body.
+         *
+         * @param length of body in bytes
+         */
+        public OutputStream getOutputStream(int length) throws IOException;
+
+        /**
+         * Starts the request, if not already started, and waits for the
+         * response status.
+         */
+        public int getResponseCode() throws IOException;
+
+        public String getContentType();
+
+        public Map<String, List<String>> getHeaderFields();
+
+        public String getHeaderField(String name);
+
+        /**
+         * @return body of response, regardless of status, with any gzip or
+         *         deflate content encoding removed, or null if there is none
+         */
+        public InputStream getInputStream() throws IOException;
+
+        /**
+         * Releases the exchange.
+         *
+         * @param keepAlive true if the connection may be reused
+         */
+        public void close(boolean keepAlive);
+    }
 
     /**
      * Optional interface to implement by clients, if they need data during
@@ -62,7 +189,9 @@ public class UrlConnectionClient {
     public interface DataHandlerCallback {
 
         /**
-         * Perform optional data handling in client during download.
+         * Perform optional data handling in client during download. Only
+         * called for successful (2xx) responses, other responses are
+         * retried or returned as without a callback.
          *
          * @param is containing downloaded data
          */
@@ -77,14 +206,28 @@ public class UrlConnectionClient {
 
         /**
          *  Provides additional feedback to the client when a http retry
-         *  is made. In this way it will be possible for client application
+         *  is scheduled. In this way it will be possible for client application
          *  to provide better feedback to the end user.
          *
          * @param httpError see IDrmLicenseServiceCallback.aidl for description
          * @param innerHttpError see IDrmLicenseServiceCallback.aidl for description
          * @param url target of request
+         * @param delay milliseconds until the request is retried
+         */
+        public void retryingUrl(int httpError, int innerHttpError, String url, long delay);
+    }
+
+    /**
+     * Optional interface to implement by clients of asynchronous requests
+     */
+    public interface ResponseCallback {
+
+        /**
+         * Called from a worker thread when a request is finished.
+         *
+         * @param response of request, null if the request was cancelled
          */
-        public void retryingUrl(int httpError, int innerHttpError, String url);
+        public void onResponse(Response response);
     }
 
     /**
@@ -105,43 +248,66 @@ public class UrlConnectionClient {
     public static Response post(final Context context, long sessionId, final String url,
             final String messageType, final String data, Bundle parameters,
             RetryCallback retryCallback, boolean returnOnRedirect) {
+        return waitForResponse(postAsync(context, sessionId, url, messageType, data, parameters,
+                retryCallback, returnOnRedirect, null));
+    }
+
+    /**
+     * Asynchronous version of post(), returns as soon as the request is
+     * started.
+     *
+     * @param responseCallback NOT null to receive callback when finished.
+     * @return future of response, the response is null if cancelled
+     */
+    public static Future<Response> postAsync(final Context context, long sessionId,
+            final String url, final String messageType, final String data, Bundle parameters,
+            RetryCallback retryCallback, boolean returnOnRedirect,
+            ResponseCallback responseCallback) {
 
         final Bundle fParameters = (parameters != null) ? parameters:
             SessionManager.getInstance().getHttpParams(sessionId);
 
-        return executeRequest(sessionId, new Request(context, returnOnRedirect, fParameters,
-                retryCallback, new Request.RequestAction(null) {
+        return startRequest(sessionId, responseCallback, new Request(context, sessionId,
+                returnOnRedirect, fParameters, retryCallback, new Request.RequestAction(null) {
 
-            HttpURLConnection urlConnection = null;
+            Exchange exchange = null;
+
+            byte[] body = null;
 
             @Override
-            public HttpURLConnection getRequest(String redirectUrl) throws Exception {
+            public Exchange getRequest(String redirectUrl) throws Exception {
                 DrmLog.debug("start");
                 URL targetUrl = URI.create((redirectUrl != null) ? redirectUrl : url).toURL();
-                urlConnection = (HttpURLConnection)targetUrl.openConnection();
-                setParameters(context, urlConnection, fParameters);
-                urlConnection.setDoOutput(true);
-                urlConnection.setRequestProperty("Content-Type", "text/xml; charset=utf-8");
+                exchange = openExchange(targetUrl);
+                setParameters(context, exchange, fParameters);
+                exchange.setRequestMethod("POST");
+                exchange.setRequestProperty("Content-Type", "text/xml; charset=utf-8");
+                exchange.setRequestProperty("Accept-Encoding", ACCEPT_ENCODING);
+                body = (data != null) ? data.getBytes("UTF-8") : null;
+                if (body != null && body.length > 0
+                        && isCompressedHost(fParameters, targetUrl.getHost())) {
+                    exchange.setRequestProperty("Content-Encoding", "gzip");
+                    body = gzip(body);
+                }
                 if (messageType != null && messageType.length() > 0) {
-                    urlConnection.setRequestProperty("SOAPAction",
+                    exchange.setRequestProperty("SOAPAction",
                             "\"http://schemas.microsoft.com/DRM/2007/03/protocols/" +
                                     messageType + "\"");
                 }
                 DrmLog.debug("end");
-                return urlConnection;
+                return exchange;
             }
 
             @Override
             public void sendData() throws IOException {
                 DrmLog.debug("start");
-                if (urlConnection != null) {
-                    if (data != null && data.length() > 0) {
+                if (exchange != null) {
+                    if (body != null && body.length > 0) {
                         if (Constants.DEBUG) {
                             DrmLog.debug("post " + data);
                         }
-                        urlConnection.setFixedLengthStreamingMode(data.length());
-                        OutputStream out = urlConnection.getOutputStream();
-                        out.write(data.getBytes());
+                        OutputStream out = exchange.getOutputStream(body.length);
+                        out.write(body);
                         out.close();
                     }
                 }
@@ -165,26 +331,227 @@ public class UrlConnectionClient {
      */
     public static Response get(final Context context, long sessionId, final String url,
             Bundle parameters, DataHandlerCallback dataCallback, RetryCallback retryCallback) {
+        return get(context, sessionId, url, parameters, -1, 0, dataCallback, retryCallback);
+    }
+
+    /**
+     * GET call towards url for a byte range of the resource. Servers that
+     * support the range respond with status 206.
+     *
+     * @param context
+     * @param sessionId     0 for non AIDL sessions.
+     * @param url           target.
+     * @param parameters    null to use parameters for session.
+     * @param offset        first byte of range, -1 to request whole resource.
+     * @param length        number of bytes in range.
+     * @param dataCallback  NOT null to receive data in callback instead of in response.
+     * @param retryCallback NOT null to receive callback on retry.
+     * @return
+     */
+    public static Response get(final Context context, long sessionId, final String url,
+            Bundle parameters, final long offset, final long length,
+            DataHandlerCallback dataCallback, RetryCallback retryCallback) {
+        return waitForResponse(getAsync(context, sessionId, url, parameters, offset, length,
+                dataCallback, retryCallback, null));
+    }
+
+    /**
+     * Asynchronous version of get(), returns as soon as the request is
+     * started. dataCallback is called from a worker thread.
+     *
+     * @param responseCallback NOT null to receive callback when finished.
+     * @return future of response, the response is null if cancelled
+     */
+    public static Future<Response> getAsync(final Context context, long sessionId,
+            final String url, Bundle parameters, final long offset, final long length,
+            DataHandlerCallback dataCallback, RetryCallback retryCallback,
+            ResponseCallback responseCallback) {
 
         final Bundle fParameters = (parameters != null) ? parameters:
             SessionManager.getInstance().getHttpParams(sessionId);
 
-        return executeRequest(sessionId, new Request(context, false, fParameters, retryCallback,
-                new Request.RequestAction(dataCallback) {
+        return startRequest(sessionId, responseCallback, new Request(context, sessionId, false,
+                fParameters, retryCallback, new Request.RequestAction(dataCallback) {
 
             @Override
-            public HttpURLConnection getRequest(String redirectUrl) throws Exception {
+            public Exchange getRequest(String redirectUrl) throws Exception {
                 DrmLog.debug("start");
-                HttpURLConnection urlConnection = null;
                 URL targetUrl = URI.create((redirectUrl != null) ? redirectUrl : url).toURL();
-                urlConnection = (HttpURLConnection)targetUrl.openConnection();
-                setParameters(context, urlConnection, fParameters);
+                Exchange exchange = openExchange(targetUrl);
+                setParameters(context, exchange, fParameters);
+                if (offset >= 0) {
+                    exchange.setRequestProperty("Range",
+                            "bytes=" + offset + "-" + (offset + length - 1));
+                } else {
+                    // Ranges must be of the stored bytes, only whole resources are compressed
+                    exchange.setRequestProperty("Accept-Encoding", ACCEPT_ENCODING);
+                }
                 DrmLog.debug("end");
-                return urlConnection;
+                return exchange;
             }
         }));
     }
 
+    /**
+     * HEAD call towards url, response headers are available through
+     * Response.getHeaderField(). The request is sent once, without retries.
+     *
+     * @param context
+     * @param sessionId     0 for non AIDL sessions.
+     * @param url           target.
+     * @param parameters    null to use parameters for session.
+     * @return
+     */
+    public static Response head(final Context context, long sessionId, final String url,
+            Bundle parameters) {
+        return waitForResponse(headAsync(context, sessionId, url, parameters, null));
+    }
+
+    /**
+     * Asynchronous version of head(), returns as soon as the request is
+     * started.
+     *
+     * @param responseCallback NOT null to receive callback when finished.
+     * @return future of response, the response is null if cancelled
+     */
+    public static Future<Response> headAsync(final Context context, long sessionId,
+            final String url, Bundle parameters, ResponseCallback responseCallback) {
+
+        final Bundle fParameters = (parameters != null) ? parameters:
+            SessionManager.getInstance().getHttpParams(sessionId);
+
+        Request request = new Request(context, sessionId, false,
+                fParameters, null, new Request.RequestAction(null) {
+
+            @Override
+            public Exchange getRequest(String redirectUrl) throws Exception {
+                DrmLog.debug("start");
+                URL targetUrl = URI.create((redirectUrl != null) ? redirectUrl : url).toURL();
+                Exchange exchange = openExchange(targetUrl);
+                setParameters(context, exchange, fParameters);
+                exchange.setRequestMethod("HEAD");
+                DrmLog.debug("end");
+                return exchange;
+            }
+        });
+        request.mIsProbe = true;
+        return startRequest(sessionId, responseCallback, request);
+    }
+
+    /**
+     * Selects transport for requests towards host.
+     *
+     * @param host name of host, as in urls
+     * @param transport to use, null for the default HttpURLConnection transport
+     */
+    public static void setTransport(String host, Transport transport) {
+        DrmLog.debug("start");
+        synchronized (sTransports) {
+            if (transport != null) {
+                sTransports.put(host, transport);
+            } else {
+                sTransports.remove(host);
+            }
+        }
+        DrmLog.debug("end");
+    }
+
+    /*
+     * Opens exchange with the transport of the host, falls back on the
+     * default transport if the server does not support it.
+     */
+    private static Exchange openExchange(URL url) throws IOException {
+        DrmLog.debug("start");
+        Exchange exchange = null;
+        String host = url.getHost();
+        Transport transport;
+        synchronized (sTransports) {
+            transport = sTransports.get(host);
+        }
+        if (transport != null) {
+            try {
+                exchange = transport.open(url);
+            } catch (ProtocolException e) {
+                DrmLog.logException(e);
+                synchronized (sTransports) {
+                    if (sTransports.get(host) == transport) {
+                        sTransports.remove(host);
+                    }
+                }
+            }
+        }
+        if (exchange == null) {
+            exchange = sDefaultTransport.open(url);
+        }
+        DrmLog.debug("end");
+        return exchange;
+    }
+
+    /*
+     * True if request bodies towards host may be compressed, hosts are
+     * opted in through the COMPRESS_REQUESTS parameter.
+     */
+    private static boolean isCompressedHost(Bundle parameters, String host) {
+        String[] hosts = (parameters != null) ?
+                parameters.getStringArray(Constants.DRM_KEYPARAM_COMPRESS_REQUESTS) : null;
+        if (hosts != null && host != null) {
+            for (String compressedHost : hosts) {
+                if (host.equalsIgnoreCase(compressedHost)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 4 + 64);
+        GZIPOutputStream out = new GZIPOutputStream(compressed);
+        out.write(data);
+        out.close();
+        return compressed.toByteArray();
+    }
+
+    /*
+     * Wraps body of response in a stream that decodes its content encoding
+     * while it is read.
+     */
+    private static InputStream decode(InputStream is, String encoding) throws IOException {
+        if (is == null || encoding == null) {
+            return is;
+        }
+        encoding = encoding.trim().toLowerCase(Locale.US);
+        try {
+            if (encoding.equals("gzip") || encoding.equals("x-gzip")) {
+                return new GZIPInputStream(is);
+            } else if (encoding.equals("deflate")) {
+                // deflate should be zlib wrapped, some servers send it raw
+                BufferedInputStream bis = new BufferedInputStream(is);
+                bis.mark(2);
+                int cmf = bis.read();
+                int flg = bis.read();
+                bis.reset();
+                boolean zlib = (cmf & 0x0F) == 8 && flg >= 0 && ((cmf << 8) | flg) % 31 == 0;
+                return new InflaterInputStream(bis, new Inflater(!zlib)) {
+
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            inf.end();
+                        }
+                    }
+                };
+            }
+        } catch (EOFException e) {
+            // empty body
+            is.close();
+            return new ByteArrayInputStream(new byte[0]);
+        }
+        return is;
+    }
+
     private static String getDefaultUserAgent(Context context) {
         DrmLog.debug("start");
         String defaultUserAgent = Constants.FALLBACK_USER_AGENT;
@@ -206,13 +573,15 @@ public class UrlConnectionClient {
         return defaultUserAgent;
     }
 
-    private static void setParameters(Context context, HttpURLConnection con, Bundle parameters) {
+    private static void setParameters(Context context, Exchange con, Bundle parameters) {
         DrmLog.debug("start");
         if (con != null) {
-            con.setInstanceFollowRedirects(false);
             int timeout = 60;
             String userAgent = getDefaultUserAgent(context);
             if (parameters != null) {
+                if (!parameters.getBoolean(Constants.DRM_KEYPARAM_KEEP_ALIVE, true)) {
+                    con.setRequestProperty("Connection", "close");
+                }
                 timeout = (parameters.getInt(Constants.DRM_KEYPARAM_TIME_OUT, -1) != -1) ?
                         parameters.getInt(Constants.DRM_KEYPARAM_TIME_OUT) : timeout;
                 userAgent = (parameters.getString(Constants.DRM_KEYPARAM_USER_AGENT) != null) ?
@@ -230,8 +599,7 @@ public class UrlConnectionClient {
                 }
             }
             con.setRequestProperty("User-Agent", userAgent);
-            con.setConnectTimeout(timeout * 1000);
-            con.setReadTimeout(timeout * 1000);
+            con.setTimeout(timeout * 1000);
         }
         DrmLog.debug("end");
     }
@@ -239,20 +607,42 @@ public class UrlConnectionClient {
     /*
      * Function to keep track of current executing requests
      */
-    private static Response executeRequest(long sessionId, Request request) {
+    private static Future<Response> startRequest(long sessionId, ResponseCallback callback,
+            Request request) {
         DrmLog.debug("start");
         synchronized (mIdMap) {
-            mIdMap.put(sessionId, request);
+            Set<Request> requests = mIdMap.get(sessionId);
+            if (requests == null) {
+                requests = new HashSet<Request>(2);
+                mIdMap.put(sessionId, requests);
+            }
+            requests.add(request);
         }
-        Response response = request.execute();
-        synchronized (mIdMap) {
-            mIdMap.remove(sessionId);
+        request.start(callback);
+        DrmLog.debug("end");
+        return request;
+    }
+
+    /*
+     * Waits for a request started by startRequest, used by the synchronous
+     * functions.
+     */
+    private static Response waitForResponse(Future<Response> future) {
+        DrmLog.debug("start");
+        Response response = null;
+        try {
+            response = future.get();
+        } catch (InterruptedException e) {
+            DrmLog.logException(e);
+            future.cancel(true);
+        } catch (ExecutionException e) {
+            DrmLog.logException(e);
         }
         DrmLog.debug("end");
         return response;
     }
 
-    private static class Request {
+    private static class Request implements Future<Response> {
 
         private static abstract class RequestAction {
 
@@ -274,14 +664,81 @@ public class UrlConnectionClient {
              * Fetch new request for action.
              * @param redirectUrl optional, new url for redirect
              */
-            public abstract HttpURLConnection getRequest(String redirectUrl) throws Exception;
+            public abstract Exchange getRequest(String redirectUrl) throws Exception;
         }
 
         private RequestAction mAction;
 
         private RetryCallback mRetryCallback;
 
-        private boolean mReturnRedirect, mIsCanceled = false;
+        private boolean mReturnRedirect;
+
+        private volatile boolean mIsCanceled = false;
+
+        private final long mSessionId;
+
+        private ResponseCallback mResponseCallback;
+
+        /*
+         * Retry that is waiting to be started, guarded by this
+         */
+        private ScheduledFuture<?> mScheduledAttempt = null;
+
+        /*
+         * Result of request, guarded by this
+         */
+        private Response mResponse = null;
+
+        private boolean mIsDone = false;
+
+        private final RetryPolicy mPolicy;
+
+        private final Bundle mParameters;
+
+        private long mRetryDelay = 0;
+
+        /*
+         * False if last attempt should be followed up without counting as
+         * a retry, e.g. a redirect
+         */
+        private boolean mIsRetry = true;
+
+        private String mRetryAfter = null;
+
+        private final Runnable mAttempt = new Runnable() {
+
+            @Override
+            public void run() {
+                attempt();
+            }
+        };
+
+        /*
+         * Connections are left to the platform connection pool after a
+         * request, so that challenge, license and acknowledgement requests
+         * to the same server share one TCP connection and TLS session. The
+         * pool evicts connections that have been idle for a few minutes.
+         */
+        private boolean mKeepAlive = true;
+
+        /*
+         * True when the body of the last response was read to its end, only
+         * then can its connection be reused
+         */
+        private boolean mBodyConsumed = false;
+
+        /*
+         * A probe, e.g. HEAD, is only an optimization for the request that
+         * follows it. It is sent once, is not retried and is not reported
+         * to the health of the host.
+         */
+        private boolean mIsProbe = false;
+
+        /*
+         * Host that an attempt of this request has been reported to, later
+         * attempts towards it are not samples of its health
+         */
+        private String mSampledHost = null;
 
         private String mRedirectUrl = null;
 
@@ -289,104 +746,203 @@ public class UrlConnectionClient {
 
         private String mMimeType;
 
-        private static final Object cancelSync = new Object();
+        private Map<String, List<String>> mHeaders;
 
-        private int mRetryLimit = 5,
-                mRetryCount = 0,
+        private int mRetryCount = 0,
                 mRedirectLimit = 20,
                 mRedirectCount = 0,
                 mStatusCode = 0,
-                mInnerStatusCode = 0,
-                mTimeout = 60;
+                mInnerStatusCode = 0;
 
-        public Request(Context context, boolean returnRedirect,
+        public Request(Context context, long sessionId, boolean returnRedirect,
                 Bundle parameters, RetryCallback retryCallback,
                 RequestAction requestAction) {
             DrmLog.debug("start");
+            mSessionId = sessionId;
             mAction = requestAction;
             mRetryCallback = retryCallback;
             mReturnRedirect = returnRedirect;
+            mPolicy = new RetryPolicy(sessionId, parameters);
+            mParameters = parameters;
 
             if (parameters != null) {
                 DrmLog.debug(parameters.toString());
-                int value = parameters.getInt(Constants.DRM_KEYPARAM_RETRY_COUNT, -1);
-                mRetryLimit = (value >= 0) ? value : mRetryLimit;
-                value = parameters.getInt(Constants.DRM_KEYPARAM_TIME_OUT, -1);
-                mTimeout = (value > 0) ? value : mTimeout;
-                value = parameters.getInt(Constants.DRM_KEYPARAM_REDIRECT_LIMIT, -1);
+                int value = parameters.getInt(Constants.DRM_KEYPARAM_REDIRECT_LIMIT, -1);
                 mRedirectLimit = (value >= 0) ? value : mRedirectLimit;
+                mKeepAlive = parameters.getBoolean(Constants.DRM_KEYPARAM_KEEP_ALIVE, true);
             }
             DrmLog.debug("end");
         }
 
-        public Response execute() {
+        /*
+         * Runs the first attempt on a worker thread
+         */
+        public void start(ResponseCallback callback) {
             DrmLog.debug("start");
-            Response response = null;
-            boolean isFinished = false;
+            mResponseCallback = callback;
+            sWorkers.execute(mAttempt);
+            DrmLog.debug("end");
+        }
 
-            do {
-                long requestStartTime = System.currentTimeMillis();
+        /*
+         * Runs one attempt of the request, then either finishes the request
+         * or schedules the next attempt.
+         */
+        private void attempt() {
+            DrmLog.debug("start");
+            boolean isFinished = false;
+            String url = null;
+            HostHealth health = null;
+            // true while the outcome of a sent request is not reported to health
+            boolean pending = false;
+            mRetryDelay = 0;
+            mIsRetry = true;
+            mRetryAfter = null;
+            Exchange exchange = null;
+            mBodyConsumed = false;
+            try {
+                exchange = mAction.getRequest(mRedirectUrl);
+                url = exchange.getURL().toString();
+                health = HostHealth.get(exchange.getURL().getHost());
                 try {
-                    HttpURLConnection urlConnection = mAction.getRequest(mRedirectUrl);
-                    if (mRetryCount > 0 && mRetryCallback != null) {
-                        mRetryCallback.retryingUrl(mStatusCode, mInnerStatusCode,
-                                urlConnection.getURL().toString());
-                    }
-                    try {
-                        if (!SessionManager.getInstance().isCancelled(mIdMap.keyAt(0))) {
-                            DrmLog.debug("execute request towards " + urlConnection.getURL());
-                            mAction.sendData();
-                            isFinished = handleResponse(urlConnection);
-                        } else {
-                            mIsCanceled = true;
-                            DrmLog.debug("Session has been cancelled, will not execute request");
-                        }
-                        urlConnection.disconnect();
-                    } catch (SocketTimeoutException|UnknownHostException|ConnectException e) {
-                        DrmLog.logException(e);
-                        if (mRetryCount < mRetryLimit) {
-                            // this was not the last retry
-                            long requestTotalTime = System.currentTimeMillis() - requestStartTime;
-                            mStatusCode = Constants.HTTP_ERROR_TOO_MANY_RETRIES;
-                            if (requestTotalTime < mTimeout * 1000) {
-                                // Just wait until TIME_OUT sec has passed in total
-                                // counted from request start time.
-                                synchronized (cancelSync) {
-                                    try {
-                                        cancelSync.wait(mTimeout * 1000 - requestTotalTime);
-                                    } catch (InterruptedException ie) {
-                                        DrmLog.logException(e);
-                                    }
-                                }
+                    if (mIsCanceled || SessionManager.getInstance().isCancelled(mSessionId)) {
+                        mIsCanceled = true;
+                        DrmLog.debug("Session has been cancelled, will not execute request");
+                    } else if (mIsProbe ? health.isOpen() : !health.allowRequest()) {
+                        DrmLog.debug("Circuit open, will not execute request " + health);
+                        mInnerStatusCode = mStatusCode;
+                        mStatusCode = Constants.HTTP_ERROR_CIRCUIT_OPEN;
+                        isFinished = true;
+                    } else {
+                        DrmLog.debug("execute request towards " + exchange.getURL());
+                        pending = !mIsProbe;
+                        long requestStartTime = System.currentTimeMillis();
+                        mAction.sendData();
+                        isFinished = handleResponse(exchange);
+                        if (pending) {
+                            if (isServerFailure(mStatusCode)) {
+                                health.onFailure(false, isSample(exchange), mParameters);
+                            } else {
+                                health.onSuccess(System.currentTimeMillis() - requestStartTime,
+                                        isSample(exchange));
                             }
+                            pending = false;
                         }
                     }
-                } catch (Exception e) {
+                } catch (SocketTimeoutException|UnknownHostException|ConnectException e) {
                     DrmLog.logException(e);
-                    mStatusCode = Constants.HTTP_ERROR_INTERNAL_ERROR;
-                    isFinished = true;
+                    mStatusCode = Constants.HTTP_ERROR_TOO_MANY_RETRIES;
+                    if (pending && !(e instanceof UnknownHostException)) {
+                        // A failed name lookup says nothing about the server
+                        health.onFailure(e instanceof SocketTimeoutException,
+                                isSample(exchange), mParameters);
+                        pending = false;
+                    }
                 }
-                if (!mIsCanceled && !isFinished && mRetryCount == mRetryLimit) {
+            } catch (Exception e) {
+                DrmLog.logException(e);
+                mStatusCode = Constants.HTTP_ERROR_INTERNAL_ERROR;
+                isFinished = true;
+            }
+            if (exchange != null) {
+                exchange.close(mKeepAlive && mBodyConsumed && !mIsCanceled);
+            }
+            if (pending) {
+                health.onAbort();
+            }
+            if (!mIsCanceled && !isFinished && mIsRetry && mIsProbe) {
+                // Redirects are followed, but a failed probe is not retried
+                isFinished = true;
+            }
+            if (!mIsCanceled && !isFinished && mIsRetry && health != null && health.isOpen()) {
+                // No use retrying until the server has recovered
+                mInnerStatusCode = mStatusCode;
+                mStatusCode = Constants.HTTP_ERROR_CIRCUIT_OPEN;
+                isFinished = true;
+            }
+            if (!mIsCanceled && !isFinished && mIsRetry) {
+                mRetryDelay = mPolicy.getDelay(mRetryCount, mRetryAfter);
+                if (mRetryDelay < 0) {
                     mInnerStatusCode = mStatusCode;
                     mStatusCode = Constants.HTTP_ERROR_TOO_MANY_RETRIES;
                     isFinished = true;
                 } else {
                     mRetryCount++;
+                    if (mRetryCallback != null) {
+                        mRetryCallback.retryingUrl(mStatusCode, mInnerStatusCode, url,
+                                mRetryDelay);
+                    }
                 }
-            } while (!isFinished && !mIsCanceled);
+            }
+            if (isFinished || !scheduleAttempt(mRetryDelay)) {
+                finish();
+            }
+            DrmLog.debug("end");
+        }
+
+        /*
+         * Only the first attempt towards a host is a sample of its health
+         */
+        private boolean isSample(Exchange exchange) {
+            String host = exchange.getURL().getHost();
+            boolean sample = !host.equals(mSampledHost);
+            mSampledHost = host;
+            return sample;
+        }
+
+        private static boolean isServerFailure(int status) {
+            return status == 408 || status == 502 || status == 503 || status == 504;
+        }
+
+        /*
+         * Returns false if the request has been cancelled
+         */
+        private synchronized boolean scheduleAttempt(long delay) {
+            if (!mIsCanceled) {
+                mScheduledAttempt = sTimer.schedule(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        sWorkers.execute(mAttempt);
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            }
+            return !mIsCanceled;
+        }
+
+        private void finish() {
+            DrmLog.debug("start");
+            Response response = null;
             if (!mIsCanceled) {
                 response = new Response(mStatusCode, mInnerStatusCode, mMimeType, mRespData);
+                response.mHeaders = mHeaders;
                 if (mStatusCode == 200 || mStatusCode == 500) {
                     DrmLog.debug("mStatusCode = " + mStatusCode);
                 } else if (mRedirectUrl != null) {
                     response.mRedirect = mRedirectUrl.toString();
                 }
             }
+            synchronized (this) {
+                if (mIsDone) {
+                    return;
+                }
+                mResponse = response;
+                mIsDone = true;
+                notifyAll();
+            }
+            synchronized (mIdMap) {
+                Set<Request> requests = mIdMap.get(mSessionId);
+                if (requests != null && requests.remove(this) && requests.isEmpty()) {
+                    mIdMap.remove(mSessionId);
+                }
+            }
+            if (mResponseCallback != null) {
+                mResponseCallback.onResponse(response);
+            }
             DrmLog.debug("end");
-            return response;
         }
 
-        private boolean handleResponse(HttpURLConnection con) throws IOException {
+        private boolean handleResponse(Exchange con) throws IOException {
             DrmLog.debug("start");
             boolean requestFinished = false;
             mStatusCode = con.getResponseCode();
@@ -406,8 +962,8 @@ public class UrlConnectionClient {
                                 mStatusCode = Constants.HTTP_ERROR_TOO_MANY_REDIRECTS;
                                 requestFinished = true;
                             }
-                            mRetryCount--;
                             // Redirects should not be treated as an retry
+                            mIsRetry = false;
                         } else {
                             // Post request made from RequestManager which
                             // result in redirect needs to return and
@@ -419,22 +975,9 @@ public class UrlConnectionClient {
                     }
                     break;
                 case 503:
-                    if (!mIsCanceled) {
-                        if (mRetryCount < mRetryLimit) {
-                            synchronized (cancelSync) {
-                                try {
-                                    cancelSync.wait(mTimeout * 1000);
-                                } catch (InterruptedException e) {
-                                    DrmLog.logException(e);
-                                }
-                            }
-                        } else {
-                            mInnerStatusCode = mStatusCode; // 503
-                        }
-                    }
-                    break;
                 case 408:
-                    // just retry
+                    // retry, when the server asks for it
+                    mRetryAfter = con.getHeaderField("Retry-After");
                     break;
                 default:
                     // Other status codes should be returned.
@@ -445,41 +988,257 @@ public class UrlConnectionClient {
             return handleData(con) || requestFinished;
         }
 
-        private boolean handleData(HttpURLConnection con) throws IOException {
+        private boolean handleData(Exchange con) throws IOException {
             DrmLog.debug("start");
             boolean abort = false;
             mMimeType = con.getContentType();
-            InputStream is = null;
-            try {
-                is = con.getInputStream();
-            } catch (FileNotFoundException e) {
-                is = con.getErrorStream();
-            }
-            if (mAction.mCallback != null) {
+            mHeaders = con.getHeaderFields();
+            InputStream body = con.getInputStream();
+            BodyInputStream is = (body != null) ? new BodyInputStream(body) : null;
+            if (mAction.mCallback != null && mStatusCode >= 200 && mStatusCode < 300) {
                 mAction.mCallback.handleData(is);
                 // data is handled, abort request
                 abort = true;
             } else {
                 mRespData = Utils.inputStreamToByteArray(is);
-                try {
-                    is.close();
-                } catch (IOException e) {
-                    DrmLog.logException(e);
+            }
+            mBodyConsumed = (is == null) || is.isConsumed(con);
+            if (!mBodyConsumed) {
+                // Callback stopped early, drop the connection instead of
+                // letting it download the rest of the body
+                con.close(false);
+            }
+            // Closing a consumed stream hands the connection back to the pool
+            try {
+                if (is != null) {
+                    is.closeBody();
                 }
+            } catch (IOException e) {
+                DrmLog.logException(e);
             }
             DrmLog.debug("end");
             return abort;
         }
 
+        /*
+         * Keeps track of how much of a response body is read. Closing it is
+         * left to handleData, so that a body that is not read to its end is
+         * never drained.
+         */
+        private static class BodyInputStream extends FilterInputStream {
+
+            private boolean mEof = false;
+
+            private long mRead = 0;
+
+            private BodyInputStream(InputStream in) {
+                super(in);
+            }
+
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b == -1) {
+                    mEof = true;
+                } else {
+                    mRead++;
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int count) throws IOException {
+                int read = super.read(buffer, offset, count);
+                if (read == -1) {
+                    mEof = true;
+                } else {
+                    mRead += read;
+                }
+                return read;
+            }
+
+            @Override
+            public long skip(long count) throws IOException {
+                long skipped = super.skip(count);
+                mRead += skipped;
+                return skipped;
+            }
+
+            @Override
+            public void close() {
+                // closed by closeBody()
+            }
+
+            private void closeBody() throws IOException {
+                super.close();
+            }
+
+            /*
+             * True if the whole body is read, i.e. end of stream was seen or
+             * all Content-Length bytes of an unencoded body were read.
+             */
+            private boolean isConsumed(Exchange con) {
+                if (mEof) {
+                    return true;
+                }
+                String length = con.getHeaderField("Content-Length");
+                if (length != null && con.getHeaderField("Content-Encoding") == null) {
+                    try {
+                        return mRead == Long.parseLong(length.trim());
+                    } catch (NumberFormatException e) {
+                        DrmLog.debug("Invalid Content-Length " + length);
+                    }
+                }
+                return false;
+            }
+        }
+
         public void cancel() {
             DrmLog.debug("start");
-            mIsCanceled = true;
-            synchronized (cancelSync) {
-                cancelSync.notify();
+            boolean waiting;
+            synchronized (this) {
+                mIsCanceled = true;
+                waiting = mScheduledAttempt != null && mScheduledAttempt.cancel(false);
+            }
+            if (waiting) {
+                // No attempt in progress that would finish the request
+                sWorkers.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        finish();
+                    }
+                });
             }
             DrmLog.debug("end");
         }
 
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (isDone()) {
+                return false;
+            }
+            cancel();
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return mIsCanceled;
+        }
+
+        @Override
+        public synchronized boolean isDone() {
+            return mIsDone;
+        }
+
+        @Override
+        public synchronized Response get() throws InterruptedException {
+            while (!mIsDone) {
+                wait();
+            }
+            return mResponse;
+        }
+
+        @Override
+        public synchronized Response get(long timeout, TimeUnit unit)
+                throws InterruptedException, TimeoutException {
+            long end = System.currentTimeMillis() + unit.toMillis(timeout);
+            long left;
+            while (!mIsDone) {
+                left = end - System.currentTimeMillis();
+                if (left <= 0) {
+                    throw new TimeoutException();
+                }
+                wait(left);
+            }
+            return mResponse;
+        }
+
+    }
+
+    /*
+     * Default transport, HttpURLConnection with the platform connection pool
+     */
+    private static class UrlConnectionTransport implements Transport {
+
+        @Override
+        public Exchange open(URL url) throws IOException {
+            final HttpURLConnection con = (HttpURLConnection)url.openConnection();
+            con.setInstanceFollowRedirects(false);
+            return new Exchange() {
+
+                @Override
+                public URL getURL() {
+                    return con.getURL();
+                }
+
+                @Override
+                public void setRequestMethod(String method) throws IOException {
+                    con.setRequestMethod(method);
+                }
+
+                @Override
+                public void setRequestProperty(String name, String value) {
+                    con.setRequestProperty(name, value);
+                }
+
+                @Override
+                public void setTimeout(int millis) {
+                    con.setConnectTimeout(millis);
+                    con.setReadTimeout(millis);
+                }
+
+                @Override
+                public OutputStream getOutputStream(int length) throws IOException {
+                    con.setDoOutput(true);
+                    con.setFixedLengthStreamingMode(length);
+                    return con.getOutputStream();
+                }
+
+                @Override
+                public int getResponseCode() throws IOException {
+                    return con.getResponseCode();
+                }
+
+                @Override
+                public String getContentType() {
+                    return con.getContentType();
+                }
+
+                @Override
+                public Map<String, List<String>> getHeaderFields() {
+                    return con.getHeaderFields();
+                }
+
+                @Override
+                public String getHeaderField(String name) {
+                    return con.getHeaderField(name);
+                }
+
+                @Override
+                public InputStream getInputStream() throws IOException {
+                    InputStream is;
+                    if (con.getResponseCode() >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                        is = con.getErrorStream();
+                    } else {
+                        try {
+                            is = con.getInputStream();
+                        } catch (FileNotFoundException e) {
+                            is = con.getErrorStream();
+                        }
+                    }
+                    return decode(is, con.getContentEncoding());
+                }
+
+                @Override
+                public void close(boolean keepAlive) {
+                    if (!keepAlive) {
+                        con.disconnect();
+                    }
+                }
+            };
+        }
     }
 
     public static class Response {
@@ -491,6 +1250,8 @@ public class UrlConnectionClient {
 
         private byte[] mData = null;
 
+        private Map<String, List<String>> mHeaders = null;
+
         public String mRedirect = null;
 
         public Response(int status, int innerStatus, String mime, byte[] data) {
@@ -522,13 +1283,37 @@ public class UrlConnectionClient {
             DrmLog.debug("Data:" + mData);
             return mData;
         }
+
+        /**
+         * @param name of header, case insensitive
+         * @return last value of header in response, or null
+         */
+        public String getHeaderField(String name) {
+            String value = null;
+            if (mHeaders != null) {
+                for (Map.Entry<String, List<String>> entry : mHeaders.entrySet()) {
+                    if (name.equalsIgnoreCase(entry.getKey()) && entry.getValue() != null
+                            && entry.getValue().size() > 0) {
+                        value = entry.getValue().get(entry.getValue().size() - 1);
+                    }
+                }
+            }
+            DrmLog.debug(name + ":" + value);
+            return value;
+        }
     }
 
     public static void prepareCancel(long sessionId) {
         DrmLog.debug("start");
+        ArrayList<Request> requests = null;
         synchronized (mIdMap) {
-            Request request = mIdMap.get(sessionId);
-            if (request != null) {
+            Set<Request> inFlight = mIdMap.get(sessionId);
+            if (inFlight != null) {
+                requests = new ArrayList<Request>(inFlight);
+            }
+        }
+        if (requests != null) {
+            for (Request request : requests) {
                 request.cancel();
             }
         }
@@ -0,0 +1,325 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is DRM License Service.
+ *
+ * The Initial Developer of the Original Code is Sony Mobile Communications Inc.
+ * Portions created by Sony Mobile Communications Inc. are Copyright (C) 2014
+ * Sony Mobile Communications Inc. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package com.sonyericsson.android.drm.drmlicenseservice;
+
+import com.sonyericsson.android.drm.drmlicenseservice.utils.DrmLog;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.util.LongSparseArray;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compact store for the groups of large web initiators.
+ *
+ * Groups are stored column wise as indexes into a string table of the
+ * batch, so that LA_URL, CustomData, type and other values shared by the
+ * groups are only stored once. The KID and CHECKSUM of each group are cut
+ * out of its Header, which leaves a header template that is shared too.
+ *
+ * Only MAX_IN_FLIGHT batches may be waiting for DrmLicenseTaskService at a
+ * time. submit() never blocks the initiator parser, which runs on the
+ * network thread. Further batches are queued in their compact form, and
+ * DrmLicenseTaskService starts the next one when it is done with a batch.
+ */
+public class WebInitiatorBatch {
+
+    /**
+     * Number of groups in a full batch
+     */
+    public static final int MAX_GROUPS = 64;
+
+    private static final int MAX_IN_FLIGHT = 4;
+
+    private static final String
+            KEY_HEADER = "Header",
+            KEY_KID = "KID",
+            KEY_CHECKSUM = "CHECKSUM";
+
+    /*
+     * Markers that replace KID and CHECKSUM in header templates, control
+     * characters are not allowed in xml so they can not clash with data.
+     */
+    private static final String
+            MARKER_KID = "\u0001",
+            MARKER_CHECKSUM = "\u0002";
+
+    /*
+     * Intents waiting to be started, in order. Intents of batches wait for
+     * a free slot, other intents (e.g. end of initiator) only wait for the
+     * batches before them. Guarded by itself, as are sBatches, sInFlight
+     * and sNextId.
+     */
+    private static final ArrayDeque<Intent> sQueue = new ArrayDeque<Intent>();
+
+    private static final LongSparseArray<WebInitiatorBatch> sBatches =
+            new LongSparseArray<WebInitiatorBatch>();
+
+    private static int sInFlight = 0;
+
+    private static long sNextId = 1;
+
+    private final long mSessionId;
+
+    private final int mFirstGroupId;
+
+    private boolean mInFlight = false;
+
+    private int mCount = 0;
+
+    private ArrayList<String> mStrings = new ArrayList<String>();
+
+    private HashMap<String, Integer> mStringIndexes = new HashMap<String, Integer>();
+
+    /*
+     * Fields of group i are at mFieldStarts[i] until mFieldStarts[i + 1]
+     */
+    private int[] mFieldStarts = new int[MAX_GROUPS + 1];
+
+    private int[] mKeys = new int[MAX_GROUPS * 8];
+
+    private int[] mValues = new int[MAX_GROUPS * 8];
+
+    /**
+     * @param sessionId dls session id of initiator
+     * @param firstGroupId group number of first group in batch
+     */
+    public WebInitiatorBatch(long sessionId, int firstGroupId) {
+        mSessionId = sessionId;
+        mFirstGroupId = firstGroupId;
+    }
+
+    public long getSessionId() {
+        return mSessionId;
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    public boolean isFull() {
+        return mCount == MAX_GROUPS;
+    }
+
+    /**
+     * @return group number within web initiator of group at index
+     */
+    public int getGroupId(int index) {
+        return mFirstGroupId + index;
+    }
+
+    /**
+     * Adds a group as parsed by XmlParser.parseWebInitiator.
+     */
+    public void add(HashMap<String, String> item) {
+        String kid = item.get(KEY_KID);
+        String checksum = item.get(KEY_CHECKSUM);
+        int pos = mFieldStarts[mCount];
+        for (Map.Entry<String, String> field : item.entrySet()) {
+            String value = field.getValue();
+            if (KEY_HEADER.equals(field.getKey()) && value != null) {
+                value = toTemplate(value, kid, checksum);
+            }
+            if (pos == mKeys.length) {
+                mKeys = Arrays.copyOf(mKeys, pos * 2);
+                mValues = Arrays.copyOf(mValues, pos * 2);
+            }
+            mKeys[pos] = intern(field.getKey());
+            mValues[pos] = intern(value);
+            pos++;
+        }
+        mCount++;
+        mFieldStarts[mCount] = pos;
+    }
+
+    /**
+     * @return group at index, as it was added
+     */
+    public HashMap<String, String> get(int index) {
+        HashMap<String, String> item = new HashMap<String, String>();
+        for (int i = mFieldStarts[index]; i < mFieldStarts[index + 1]; i++) {
+            item.put(mStrings.get(mKeys[i]), mStrings.get(mValues[i]));
+        }
+        String header = item.get(KEY_HEADER);
+        if (header != null) {
+            item.put(KEY_HEADER, fromTemplate(header, item.get(KEY_KID),
+                    item.get(KEY_CHECKSUM)));
+        }
+        return item;
+    }
+
+    /**
+     * Hands a batch over to DrmLicenseTaskService, or queues it while
+     * MAX_IN_FLIGHT batches are waiting. Never blocks.
+     *
+     * @param context
+     * @param batch to run, must not be changed after this
+     */
+    public static void submit(Context context, WebInitiatorBatch batch) {
+        DrmLog.debug("start");
+        Intent intent = new Intent(Constants.TASK_SERVICE);
+        intent.setClass(context, DrmLicenseTaskService.class);
+        intent.putExtra(Constants.DLS_INTENT_TYPE, Constants.DLS_INTENT_TYPE_BATCH);
+        intent.putExtra(Constants.DLS_INTENT_SESSION_ID, batch.mSessionId);
+        synchronized (sQueue) {
+            long id = sNextId++;
+            sBatches.put(id, batch);
+            intent.putExtra(Constants.DLS_INTENT_BATCH_ID, id);
+            sQueue.add(intent);
+            dispatch(context);
+        }
+        DrmLog.debug("end");
+    }
+
+    /**
+     * Starts an intent towards DrmLicenseTaskService after all batches
+     * submitted before it, e.g. the end of an initiator.
+     *
+     * @param context
+     * @param intent to start
+     */
+    public static void startAfterBatches(Context context, Intent intent) {
+        DrmLog.debug("start");
+        synchronized (sQueue) {
+            sQueue.add(intent);
+            dispatch(context);
+        }
+        DrmLog.debug("end");
+    }
+
+    /**
+     * Removes a submitted batch. done() must be called when the batch has
+     * been handled, or could not be handled.
+     *
+     * @return batch, or null if there is no such batch (e.g. the process
+     *         has been restarted since it was submitted)
+     */
+    public static WebInitiatorBatch take(long id) {
+        WebInitiatorBatch batch;
+        synchronized (sQueue) {
+            batch = sBatches.get(id);
+            sBatches.remove(id);
+        }
+        return batch;
+    }
+
+    /**
+     * Frees the slot of a batch, and starts the next queued batch.
+     *
+     * @param context
+     * @param batch returned by take(), may be null
+     */
+    public static void done(Context context, WebInitiatorBatch batch) {
+        if (batch == null) {
+            return;
+        }
+        synchronized (sQueue) {
+            if (batch.mInFlight) {
+                batch.mInFlight = false;
+                sInFlight--;
+                dispatch(context);
+            }
+        }
+    }
+
+    /*
+     * Starts queued intents in order until a batch has to wait for a slot.
+     * Called with sQueue locked.
+     */
+    private static void dispatch(Context context) {
+        Intent intent;
+        while ((intent = sQueue.peek()) != null) {
+            WebInitiatorBatch batch = null;
+            long id = intent.getLongExtra(Constants.DLS_INTENT_BATCH_ID, -1);
+            if (id >= 0) {
+                if (sInFlight == MAX_IN_FLIGHT) {
+                    break;
+                }
+                batch = sBatches.get(id);
+                if (batch != null) {
+                    batch.mInFlight = true;
+                    sInFlight++;
+                }
+            }
+            sQueue.remove();
+            if (context.startService(intent) == null && batch != null) {
+                DrmLog.error("Batch could not be started");
+                done(context, take(id));
+                batch.reportFailure();
+            }
+        }
+    }
+
+    /*
+     * Reports every group of a batch that could not be run as failed, so
+     * that the client still gets one finished job per group.
+     */
+    private void reportFailure() {
+        for (int i = 0; i < mCount; i++) {
+            Bundle parameters = WebInitiatorTaskService.createTaskParameters(get(i), mSessionId,
+                    getGroupId(i)).getBundle(Constants.DLS_INTENT_CB_PARAMS);
+            parameters.putInt(Constants.DRM_KEYPARAM_HTTP_ERROR,
+                    Constants.HTTP_ERROR_INTERNAL_ERROR);
+            SessionManager.getInstance().callback(mSessionId,
+                    Constants.PROGRESS_TYPE_FINISHED_JOB, false, parameters);
+        }
+    }
+
+    private int intern(String value) {
+        Integer index = mStringIndexes.get(value);
+        if (index == null) {
+            index = mStrings.size();
+            mStrings.add(value);
+            mStringIndexes.put(value, index);
+        }
+        return index;
+    }
+
+    private static String toTemplate(String header, String kid, String checksum) {
+        if (kid != null && kid.length() > 0) {
+            header = header.replace(kid, MARKER_KID);
+        }
+        if (checksum != null && checksum.length() > 0) {
+            header = header.replace(checksum, MARKER_CHECKSUM);
+        }
+        return header;
+    }
+
+    private static String fromTemplate(String template, String kid, String checksum) {
+        if (checksum != null && checksum.length() > 0) {
+            template = template.replace(MARKER_CHECKSUM, checksum);
+        }
+        if (kid != null && kid.length() > 0) {
+            template = template.replace(MARKER_KID, kid);
+        }
+        return template;
+    }
+}
@@ -23,6 +23,7 @@
 
 package com.sonyericsson.android.drm.drmlicenseservice;
 
+import com.sonyericsson.android.drm.drmlicenseservice.UrlConnectionClient.DataHandlerCallback;
 import com.sonyericsson.android.drm.drmlicenseservice.UrlConnectionClient.Response;
 import com.sonyericsson.android.drm.drmlicenseservice.UrlConnectionClient.RetryCallback;
 import com.sonyericsson.android.drm.drmlicenseservice.utils.*;
@@ -36,10 +37,11 @@ import android.net.Uri;
 import android.os.Bundle;
 import android.provider.MediaStore;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.ArrayDeque;
+import java.io.InputStream;
 import java.util.HashMap;
 
 public class WebInitiatorTaskService extends IntentService {
@@ -52,6 +54,15 @@ public class WebInitiatorTaskService extends IntentService {
 
     private RetryCallback mRetryCallback;
 
+    private int mGroupCount = 0;
+
+    private WebInitiatorBatch mBatch = null;
+
+    /*
+     * Groups after this are started in batches, see WebInitiatorBatch
+     */
+    private static final int BULK_THRESHOLD = 16;
+
     private static final String
             WEBI_TYPE_LICENSE_ACQUISITION = "LicenseAcquisition",
             WEBI_TYPE_JOIN_DOMAIN = "JoinDomain",
@@ -81,11 +92,13 @@ public class WebInitiatorTaskService extends IntentService {
         mRetryCallback = new RetryCallback() {
 
             @Override
-            public void retryingUrl(int httpError, int innerHttpError, String url) {
+            public void retryingUrl(int httpError, int innerHttpError, String url,
+                    long delay) {
                 Bundle parameters = new Bundle();
                 parameters.putString(Constants.DRM_KEYPARAM_URL, url);
                 parameters.putInt(Constants.DRM_KEYPARAM_HTTP_ERROR, httpError);
                 parameters.putInt(Constants.DRM_KEYPARAM_INNER_HTTP_ERROR, innerHttpError);
+                parameters.putLong(Constants.DRM_KEYPARAM_RETRY_DELAY, delay);
                 SessionManager.getInstance().callback(mSessionId,
                         Constants.PROGRESS_TYPE_HTTP_RETRYING, true, parameters);
             }
@@ -104,32 +117,49 @@ public class WebInitiatorTaskService extends IntentService {
         int httpError = 0;
         int innerHttpError = 0;
 
-        WebinitiatorData webi = getWebinitiator();
-        int dataLength = (webi.data != null) ? webi.data.length : 0;
-        if (dataLength > 0) {
-            ArrayDeque<HashMap<String, String>> dataAll = XmlParser.parseWebInitiator(webi.data);
-            if (dataAll != null) {
-                int numberOfGroups = dataAll.size();
-                if (mSessionId > 0) {
-                    Bundle callbackParameters = new Bundle();
-                    callbackParameters.putString(Constants.DRM_KEYPARAM_WEB_INITIATOR,
-                            mUri.toString());
-                    callbackParameters.putString(Constants.DLS_CB_PATH, mUri.toString());
-                    callbackParameters.putInt(Constants.DRM_KEYPARAM_GROUP_COUNT, numberOfGroups);
-                    // callback, notify number of jobs
-                    SessionManager.getInstance().callback(mSessionId,
-                            Constants.PROGRESS_TYPE_WEBINI_COUNT, true, callbackParameters);
+        if (mSessionId > Constants.NOT_AIDL_SESSION) {
+            // Number of groups is known first when the initiator is parsed
+            SessionManager.getInstance().holdGroupReports(mSessionId);
+        }
+        mGroupCount = 0;
+        // Loop through the parts of the initiator (it may be multiple
+        // parts), each part is started as soon as it has been parsed.
+        XmlParser.ItemHandler handler = new XmlParser.ItemHandler() {
+
+            @Override
+            public boolean handleItem(HashMap<String, String> item) {
+                if (SessionManager.getInstance().isCancelled(mSessionId)) {
+                    return false;
                 }
-                // Loop through the parts of the initiator (it may
-                // be multiple parts).
-                int groupId = 0;
-                while (dataAll.size() > 0 && !SessionManager.getInstance().isCancelled(mSessionId)) {
-                    groupId++;
-                    handleInitiatorDataItem(dataAll.removeFirst(), numberOfGroups, groupId);
+                mGroupCount++;
+                if (mGroupCount <= BULK_THRESHOLD) {
+                    handleInitiatorDataItem(item, mGroupCount);
+                    return true;
                 }
-                status = true;
-            } else {
-                httpError = Constants.HTTP_ERROR_XML_PARSING_ERROR;
+                if (mBatch == null) {
+                    mBatch = new WebInitiatorBatch(mSessionId, mGroupCount);
+                }
+                mBatch.add(item);
+                if (mBatch.isFull()) {
+                    dispatchBatch();
+                }
+                return true;
+            }
+        };
+        WebinitiatorData webi = parseWebinitiator(handler);
+        // Groups parsed before end of initiator or a parsing error
+        dispatchBatch();
+        if (webi.httpError == 0) {
+            status = true;
+            if (mSessionId > 0) {
+                Bundle callbackParameters = new Bundle();
+                callbackParameters.putString(Constants.DRM_KEYPARAM_WEB_INITIATOR,
+                        mUri.toString());
+                callbackParameters.putString(Constants.DLS_CB_PATH, mUri.toString());
+                callbackParameters.putInt(Constants.DRM_KEYPARAM_GROUP_COUNT, mGroupCount);
+                // callback, notify number of jobs
+                SessionManager.getInstance().callback(mSessionId,
+                        Constants.PROGRESS_TYPE_WEBINI_COUNT, true, callbackParameters);
             }
         } else {
             httpError = webi.httpError;
@@ -138,7 +168,8 @@ public class WebInitiatorTaskService extends IntentService {
         if (mSessionId > Constants.NOT_AIDL_SESSION) { // has callback handler
             if (httpError != 0) { // parsing error
                 Bundle parameters = new Bundle();
-                parameters.putInt(Constants.DRM_KEYPARAM_GROUP_COUNT, 0);
+                // Groups before a parsing error have already been started
+                parameters.putInt(Constants.DRM_KEYPARAM_GROUP_COUNT, mGroupCount);
                 if (mUri != null) {
                     parameters.putString(Constants.DRM_KEYPARAM_WEB_INITIATOR, mUri.toString());
                 }
@@ -154,7 +185,8 @@ public class WebInitiatorTaskService extends IntentService {
             finishedIntent.putExtra(Constants.DLS_INTENT_TYPE,
                     Constants.DLS_INTENT_TYPE_FINISHED_WEBI);
             finishedIntent.putExtra(Constants.DLS_INTENT_SESSION_ID, mSessionId);
-            mContext.startService(finishedIntent);
+            // Queued batches of the initiator must be run before it finishes
+            WebInitiatorBatch.startAfterBatches(mContext, finishedIntent);
         }
 
         if (status && mUri != null && (ContentResolver.SCHEME_FILE.equals(mUri.getScheme()) ||
@@ -165,20 +197,30 @@ public class WebInitiatorTaskService extends IntentService {
         DrmLog.debug("end");
     }
 
-    private WebinitiatorData getWebinitiator() {
+    /*
+     * Parses the initiator straight from the http or file stream, nothing
+     * is buffered.
+     */
+    private WebinitiatorData parseWebinitiator(final XmlParser.ItemHandler handler) {
         DrmLog.debug("start");
-        byte[] respData = null;
+        final boolean[] parsed = new boolean[1];
         int httpError = 0, innerHttpError = 0;
         if (mUri != null) {
             String host;
             if (("http".equals(mUri.getScheme()) || "https".equals(mUri.getScheme())) &&
                     ((host = mUri.getHost()) != null) && host.length() > 0) {
+                DataHandlerCallback dataCallback = new DataHandlerCallback() {
+
+                    @Override
+                    public void handleData(InputStream is) {
+                        parsed[0] = XmlParser.parseWebInitiator(is, handler);
+                    }
+                };
                 Response response = UrlConnectionClient.get(mContext, mSessionId, mUri.toString(),
-                        null, null,mRetryCallback);
+                        null, dataCallback, mRetryCallback);
 
                 if (response != null && response.getStatus() == 200) {
-                    respData = response.getData();
-                    if (respData == null || respData.length == 0) {
+                    if (!parsed[0]) {
                         DrmLog.debug("Request to " + mUri.toString() + " did not return any data.");
                         httpError = Constants.HTTP_ERROR_XML_PARSING_ERROR;
                     }
@@ -224,13 +266,9 @@ public class WebInitiatorTaskService extends IntentService {
                     FileInputStream fis = null;
                     try {
                         fis = new FileInputStream(path);
-                        ByteArrayBuffer data = new ByteArrayBuffer(10000);
-                        byte buffer[] = new byte[1024];
-                        int read = 0;
-                        while ((read = fis.read(buffer, 0, buffer.length)) > 0) {
-                            data.append(buffer, 0, read);
+                        if (!XmlParser.parseWebInitiator(new BufferedInputStream(fis), handler)) {
+                            httpError = Constants.HTTP_ERROR_XML_PARSING_ERROR;
                         }
-                        respData = data.toByteArray();
                     } catch (IOException e) {
                         httpError = Constants.HTTP_ERROR_XML_PARSING_ERROR;
                         DrmLog.logException(e);
@@ -252,20 +290,50 @@ public class WebInitiatorTaskService extends IntentService {
             httpError = Constants.HTTP_ERROR_XML_PARSING_ERROR;
         }
         DrmLog.debug("end");
-        return new WebinitiatorData(respData, httpError, innerHttpError);
+        return new WebinitiatorData(httpError, innerHttpError);
     }
 
-    private void handleInitiatorDataItem(HashMap<String, String> data, int numberOfGroups,
+    private void handleInitiatorDataItem(HashMap<String, String> data, int groupId) {
+        DrmLog.debug("start");
+        Intent intent = new Intent(Constants.TASK_SERVICE);
+        intent.setClass(mContext, DrmLicenseTaskService.class);
+        intent.putExtras(createTaskParameters(data, mSessionId, groupId));
+        mContext.startService(intent);
+        DrmLog.debug("end");
+    }
+
+    /*
+     * Hands the pending batch over to DrmLicenseTaskService, it is queued
+     * if too many batches are already in flight.
+     */
+    private void dispatchBatch() {
+        DrmLog.debug("start");
+        if (mBatch != null && mBatch.size() > 0) {
+            WebInitiatorBatch.submit(mContext, mBatch);
+        }
+        mBatch = null;
+        DrmLog.debug("end");
+    }
+
+    /**
+     * Creates the parameters of a DrmLicenseTaskService task for a group of
+     * a web initiator. Number of groups is not known yet, it is added by
+     * SessionManager when the finished job is reported.
+     *
+     * @param data group as parsed by XmlParser
+     * @param sessionId dls session id
+     * @param groupId group number within initiator
+     * @return parameters for RequestManager
+     */
+    protected static Bundle createTaskParameters(HashMap<String, String> data, long sessionId,
             int groupId) {
         DrmLog.debug("start");
         String type = data.get("type");
         Bundle callbackParameters = new Bundle();
-        Intent intent = new Intent(Constants.TASK_SERVICE);
-        intent.setClass(mContext, DrmLicenseTaskService.class);
-        intent.putExtra(Constants.DLS_INTENT_TYPE, Constants.DLS_INTENT_TYPE_TASK);
-        intent.putExtra(Constants.DLS_INTENT_ITEMDATA, data);
-        intent.putExtra(Constants.DLS_INTENT_SESSION_ID, mSessionId);
-        callbackParameters.putInt(Constants.DRM_KEYPARAM_GROUP_COUNT, numberOfGroups);
+        Bundle parameters = new Bundle();
+        parameters.putInt(Constants.DLS_INTENT_TYPE, Constants.DLS_INTENT_TYPE_TASK);
+        parameters.putSerializable(Constants.DLS_INTENT_ITEMDATA, data);
+        parameters.putLong(Constants.DLS_INTENT_SESSION_ID, sessionId);
         callbackParameters.putInt(Constants.DRM_KEYPARAM_GROUP_NUMBER, groupId);
         callbackParameters.putInt(Constants.DLS_CB_PROGRESS_TYPE,
                 Constants.PROGRESS_TYPE_FINISHED_JOB);
@@ -273,7 +341,7 @@ public class WebInitiatorTaskService extends IntentService {
             String kid = data.get(WEBI_LICENSE_ACQUISITION_KID);
             String header = data.get(WEBI_LICENSE_ACQUISITION_HEADER);
             if (header != null && header.length() > 0 && kid != null && kid.length() > 0) {
-                intent.putExtra(Constants.DLS_INTENT_REQUEST_TYPE,
+                parameters.putInt(Constants.DLS_INTENT_REQUEST_TYPE,
                         RequestManager.TYPE_ACQUIRE_LICENSE);
                 callbackParameters.putString(Constants.DRM_KEYPARAM_TYPE,
                         Constants.AIDL_CB_TYPE_ACQUIRE_LICENSE);
@@ -281,11 +349,11 @@ public class WebInitiatorTaskService extends IntentService {
                 DrmLog.debug("Missing or incorrect Header/Kid");
             }
         } else if (type.equals(WEBI_TYPE_JOIN_DOMAIN)) {
-            intent.putExtra(Constants.DLS_INTENT_REQUEST_TYPE, RequestManager.TYPE_JOIN_DOMAIN);
+            parameters.putInt(Constants.DLS_INTENT_REQUEST_TYPE, RequestManager.TYPE_JOIN_DOMAIN);
             callbackParameters.putString(Constants.DRM_KEYPARAM_TYPE,
                     Constants.AIDL_CB_TYPE_JOIN_DOMAIN);
         } else if (type.equals(WEBI_TYPE_LEAVE_DOMAIN)) {
-            intent.putExtra(Constants.DLS_INTENT_REQUEST_TYPE, RequestManager.TYPE_LEAVE_DOMAIN);
+            parameters.putInt(Constants.DLS_INTENT_REQUEST_TYPE, RequestManager.TYPE_LEAVE_DOMAIN);
             callbackParameters.putString(Constants.DRM_KEYPARAM_TYPE,
                     Constants.AIDL_CB_TYPE_LEAVE_DOMAIN);
         } else {
@@ -295,19 +363,17 @@ public class WebInitiatorTaskService extends IntentService {
             callbackParameters.putString(Constants.DRM_KEYPARAM_TYPE, type);
             DrmLog.debug("Unknown initiator: " + type);
         }
-        intent.putExtra(Constants.DLS_INTENT_CB_PARAMS,callbackParameters);
-        mContext.startService(intent);
+        parameters.putBundle(Constants.DLS_INTENT_CB_PARAMS, callbackParameters);
         DrmLog.debug("end");
+        return parameters;
     }
 
     private static class WebinitiatorData {
-        byte[] data = null;
         int httpError = 0;
         int innerHttpError = 0;
 
-        private WebinitiatorData (byte[] respData, int error, int innerError) {
+        private WebinitiatorData (int error, int innerError) {
             DrmLog.debug("start");
-            data = respData;
             httpError = error;
             innerHttpError = innerError;
             DrmLog.debug("end");
@@ -23,15 +23,12 @@
 
 package com.sonyericsson.android.drm.drmlicenseservice.parser;
 
-import android.util.SparseArray;
-
 public class Box {
     public static final Box EmptyBox = new Box();
 
     public long offset;
     public long size;
     public BoxType boxType;
-    public SparseArray<Box> subBoxes = new SparseArray<Box>();
 
     public Box() {
         boxType = new BoxType(0);
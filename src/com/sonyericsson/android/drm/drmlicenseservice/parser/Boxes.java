@@ -28,18 +28,11 @@ import java.util.ArrayList;
 
 public class Boxes {
 
-    public static class FileTypeBox extends Box {
-        public int majorBrand;
-        public int minorVersion;
-        List<Integer> compatibleBrands = new ArrayList<Integer>();
-
-        public FileTypeBox(long anOffset, long aSize, BoxType aBoxType) {
-            super(anOffset, aSize, aBoxType);
-        }
-    };
-
     public static class ProtSysSpecificHeaderBox extends Box {
+        public int version;
         public Uuid systemId;
+        public List<Uuid> kids = new ArrayList<Uuid>();
+        public long dataOffset;
         public int dataSize;
         public byte []data;
 
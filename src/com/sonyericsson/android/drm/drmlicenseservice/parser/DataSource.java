@@ -0,0 +1,398 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is DRM License Service.
+ *
+ * The Initial Developer of the Original Code is Sony Mobile Communications Inc.
+ * Portions created by Sony Mobile Communications Inc. are Copyright (C) 2014
+ * Sony Mobile Communications Inc. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package com.sonyericsson.android.drm.drmlicenseservice.parser;
+
+import com.sonyericsson.android.drm.drmlicenseservice.utils.DrmLog;
+
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Random access to the bytes of a file being parsed.
+ *
+ * The part of the file being parsed is memory mapped when possible so that
+ * boxes can be decoded in place, otherwise positional reads are made on the
+ * file channel through a small read-ahead window.
+ */
+public abstract class DataSource implements Closeable {
+
+    private static final int READ_AHEAD_SIZE = 4096;
+
+    /**
+     * Largest part of a file that is mapped at a time
+     */
+    private static final int MAP_REGION_SIZE = 1024 * 1024;
+
+    FileChannel mChannel;
+
+    private FileInputStream mStream;
+
+    private DataSource(FileChannel channel) {
+        mChannel = channel;
+    }
+
+    /**
+     * Creates a source that is not backed by a file channel.
+     */
+    protected DataSource() {
+        mChannel = null;
+    }
+
+    /**
+     * Opens a file for parsing.
+     *
+     * @param path to file
+     * @return source of file data
+     * @throws IOException if file could not be opened
+     */
+    public static DataSource open(String path) throws IOException {
+        FileInputStream stream = new FileInputStream(path);
+        DataSource source = open(stream.getChannel());
+        source.mStream = stream;
+        return source;
+    }
+
+    /**
+     * Creates a source on top of an already opened channel. The channel is
+     * closed when the source is closed.
+     *
+     * @param channel to read from
+     * @return source of channel data
+     * @throws IOException if size of channel could not be read
+     */
+    public static DataSource open(FileChannel channel) throws IOException {
+        DataSource source = null;
+        long size = channel.size();
+        MappedSource mapped = new MappedSource(channel, size);
+        try {
+            mapped.map(0, (int)Math.min(size, 8));
+            source = mapped;
+        } catch (IOException e) {
+            // Some file systems (e.g. FUSE) do not support mmap, fall
+            // back on positional reads
+            DrmLog.debug("map failed, " + e.getMessage());
+        }
+        if (source == null) {
+            source = new ChannelSource(channel, size);
+        }
+        return source;
+    }
+
+    /**
+     * @return number of bytes available in source
+     */
+    public abstract long size();
+
+    /**
+     * Reads bytes at an absolute position without changing any state.
+     *
+     * @return true if all requested bytes were available
+     */
+    public abstract boolean get(long position, byte[] buffer, int offset, int length);
+
+    /**
+     * @return big endian 32 bit value at position, interpreted as unsigned
+     *         if asked for as long, or -1 if not available
+     */
+    public abstract long getUint32(long position);
+
+    /**
+     * @return big endian 64 bit value at position, or -1 if not available.
+     *         Use isAvailable() first if the value itself may be negative.
+     */
+    public abstract long getUint64(long position);
+
+    /**
+     * @return unsigned byte at position, or -1 if not available
+     */
+    public abstract int getUint8(long position);
+
+    /**
+     * Compares bytes at position with value, without copying them.
+     */
+    public boolean matches(long position, byte[] value) {
+        if (position < 0 || position + value.length > size()) {
+            return false;
+        }
+        for (int i = 0; i < value.length; i++) {
+            if (getUint8(position + i) != (value[i] & 0xFF)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean isAvailable(long position, int length) {
+        return position >= 0 && length >= 0 && position + length <= size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mStream != null) {
+            mStream.close();
+        } else if (mChannel != null) {
+            mChannel.close();
+        }
+    }
+
+    /*
+     * Maps one region of the file at a time, the region moves with the
+     * parser. Regions are never larger than MAP_REGION_SIZE, so parsing many
+     * large files does not use up the address space before the unused
+     * mappings are collected.
+     */
+    private static class MappedSource extends DataSource {
+
+        private final long mSize;
+
+        private MappedByteBuffer mRegion = null;
+
+        private long mRegionStart = -1;
+
+        private MappedSource(FileChannel channel, long size) {
+            super(channel);
+            mSize = size;
+        }
+
+        /*
+         * Makes sure that the requested range is in the mapped region.
+         * Ranges larger than a region are never mapped.
+         */
+        private boolean map(long position, int length) throws IOException {
+            if (!isAvailable(position, length) || length > MAP_REGION_SIZE) {
+                return false;
+            }
+            if (mRegion != null && position >= mRegionStart
+                    && position + length <= mRegionStart + mRegion.limit()) {
+                return true;
+            }
+            // Drop the old region first, it is unmapped when collected
+            mRegion = null;
+            mRegion = mChannel.map(FileChannel.MapMode.READ_ONLY, position,
+                    Math.min(MAP_REGION_SIZE, mSize - position));
+            mRegion.order(ByteOrder.BIG_ENDIAN);
+            mRegionStart = position;
+            return true;
+        }
+
+        private boolean load(long position, int length) {
+            try {
+                return map(position, length);
+            } catch (IOException e) {
+                DrmLog.error("IOException");
+                mRegion = null;
+                return false;
+            }
+        }
+
+        @Override
+        public long size() {
+            return mSize;
+        }
+
+        @Override
+        public boolean get(long position, byte[] buffer, int offset, int length) {
+            if (length > MAP_REGION_SIZE) {
+                if (!isAvailable(position, length)) {
+                    return false;
+                }
+                ByteBuffer target = ByteBuffer.wrap(buffer, offset, length);
+                try {
+                    while (target.hasRemaining()) {
+                        if (mChannel.read(target, position + target.position() - offset) == -1) {
+                            return false;
+                        }
+                    }
+                } catch (IOException e) {
+                    DrmLog.error("IOException");
+                    return false;
+                }
+                return true;
+            }
+            if (!load(position, length)) {
+                return false;
+            }
+            ByteBuffer view = mRegion.duplicate();
+            view.position((int)(position - mRegionStart));
+            view.get(buffer, offset, length);
+            return true;
+        }
+
+        @Override
+        public long getUint32(long position) {
+            return load(position, 4) ?
+                    mRegion.getInt((int)(position - mRegionStart)) & 0xFFFFFFFFL : -1;
+        }
+
+        @Override
+        public long getUint64(long position) {
+            return load(position, 8) ? mRegion.getLong((int)(position - mRegionStart)) : -1;
+        }
+
+        @Override
+        public int getUint8(long position) {
+            return load(position, 1) ? mRegion.get((int)(position - mRegionStart)) & 0xFF : -1;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mRegion = null;
+            super.close();
+        }
+    }
+
+    /**
+     * Source that reads data on demand through a read-ahead window. Reads
+     * larger than the window are made directly.
+     */
+    public static abstract class WindowedSource extends DataSource {
+
+        private long mSize;
+
+        private ByteBuffer mWindow;
+
+        private long mWindowStart = -1;
+
+        private WindowedSource(FileChannel channel, long size, int windowSize) {
+            super(channel);
+            mSize = size;
+            mWindow = ByteBuffer.allocate(windowSize);
+            mWindow.order(ByteOrder.BIG_ENDIAN);
+        }
+
+        /**
+         * @param size of data
+         * @param windowSize number of bytes to read ahead
+         */
+        protected WindowedSource(long size, int windowSize) {
+            this(null, size, windowSize);
+        }
+
+        /**
+         * Reads bytes at an absolute position into the remaining part of
+         * target.
+         *
+         * @return number of bytes read, or -1 at end of data
+         */
+        protected abstract int read(ByteBuffer target, long position) throws IOException;
+
+        /*
+         * Makes sure that the requested range is in the read-ahead window.
+         * Ranges larger than the window are never loaded.
+         */
+        private boolean load(long position, int length) {
+            if (!isAvailable(position, length) || length > mWindow.capacity()) {
+                return false;
+            }
+            if (mWindowStart >= 0 && position >= mWindowStart
+                    && position + length <= mWindowStart + mWindow.limit()) {
+                return true;
+            }
+            mWindow.clear();
+            if (mWindow.remaining() > mSize - position) {
+                mWindow.limit((int)(mSize - position));
+            }
+            try {
+                while (mWindow.hasRemaining()) {
+                    if (read(mWindow, position + mWindow.position()) == -1) {
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                DrmLog.error("IOException");
+                mWindowStart = -1;
+                return false;
+            }
+            mWindow.flip();
+            mWindowStart = position;
+            return mWindow.limit() >= length;
+        }
+
+        @Override
+        public long size() {
+            return mSize;
+        }
+
+        @Override
+        public boolean get(long position, byte[] buffer, int offset, int length) {
+            if (length > mWindow.capacity()) {
+                if (!isAvailable(position, length)) {
+                    return false;
+                }
+                ByteBuffer target = ByteBuffer.wrap(buffer, offset, length);
+                try {
+                    while (target.hasRemaining()) {
+                        if (read(target, position + target.position() - offset) == -1) {
+                            return false;
+                        }
+                    }
+                } catch (IOException e) {
+                    DrmLog.error("IOException");
+                    return false;
+                }
+                return true;
+            }
+            if (!load(position, length)) {
+                return false;
+            }
+            ByteBuffer view = mWindow.duplicate();
+            view.position((int)(position - mWindowStart));
+            view.get(buffer, offset, length);
+            return true;
+        }
+
+        @Override
+        public long getUint32(long position) {
+            return load(position, 4) ?
+                    mWindow.getInt((int)(position - mWindowStart)) & 0xFFFFFFFFL : -1;
+        }
+
+        @Override
+        public long getUint64(long position) {
+            return load(position, 8) ? mWindow.getLong((int)(position - mWindowStart)) : -1;
+        }
+
+        @Override
+        public int getUint8(long position) {
+            return load(position, 1) ? mWindow.get((int)(position - mWindowStart)) & 0xFF : -1;
+        }
+    }
+
+    private static class ChannelSource extends WindowedSource {
+
+        private ChannelSource(FileChannel channel, long size) {
+            super(channel, size, READ_AHEAD_SIZE);
+        }
+
+        @Override
+        protected int read(ByteBuffer target, long position) throws IOException {
+            return mChannel.read(target, position);
+        }
+    }
+}
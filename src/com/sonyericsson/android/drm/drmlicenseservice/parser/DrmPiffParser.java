@@ -25,9 +25,7 @@ package com.sonyericsson.android.drm.drmlicenseservice.parser;
 
 import com.sonyericsson.android.drm.drmlicenseservice.utils.DrmLog;
 
-import android.util.SparseArray;
-
-import java.io.RandomAccessFile;
+import java.util.Arrays;
 import java.util.List;
 import java.util.ArrayList;
 import java.io.IOException;
@@ -42,43 +40,150 @@ public class DrmPiffParser {
     private static final int DRM_PLAYREADY_RECORD_MIN_LENGTH = 4;
 
     public static final int BOX_TYPE_UUID = ('u' << 24 | 'u' << 16 | 'i' << 8 | 'd');
+    static final int BOX_TYPE_FTYP = ('f' << 24 | 't' << 16 | 'y' << 8 | 'p');
+    static final int BOX_TYPE_MOOV = ('m' << 24 | 'o' << 16 | 'o' << 8 | 'v');
+    static final int BOX_TYPE_PSSH = ('p' << 24 | 's' << 16 | 's' << 8 | 'h');
+    static final int BOX_TYPE_MOOF = ('m' << 24 | 'o' << 16 | 'o' << 8 | 'f');
+    static final int BOX_TYPE_TRAF = ('t' << 24 | 'r' << 16 | 'a' << 8 | 'f');
+    private static final int BOX_TYPE_TRAK = ('t' << 24 | 'r' << 16 | 'a' << 8 | 'k');
+    private static final int BOX_TYPE_MDIA = ('m' << 24 | 'd' << 16 | 'i' << 8 | 'a');
+    private static final int BOX_TYPE_MINF = ('m' << 24 | 'i' << 16 | 'n' << 8 | 'f');
+    private static final int BOX_TYPE_STBL = ('s' << 24 | 't' << 16 | 'b' << 8 | 'l');
+    private static final int BOX_TYPE_STSD = ('s' << 24 | 't' << 16 | 's' << 8 | 'd');
+    private static final int BOX_TYPE_ENCV = ('e' << 24 | 'n' << 16 | 'c' << 8 | 'v');
+    private static final int BOX_TYPE_ENCA = ('e' << 24 | 'n' << 16 | 'c' << 8 | 'a');
+    private static final int BOX_TYPE_SINF = ('s' << 24 | 'i' << 16 | 'n' << 8 | 'f');
+    private static final int BOX_TYPE_SCHI = ('s' << 24 | 'c' << 16 | 'h' << 8 | 'i');
+    private static final int BOX_TYPE_TENC = ('t' << 24 | 'e' << 16 | 'n' << 8 | 'c');
     private static final int PIFF_BRAND = ('p' << 24 | 'i' << 16 | 'f' << 8 | 'f');
     private static final int PIFF_MINOR_VERSION = 0x00000001;
-    private static final long MAX_BOX_SIZE = 1000000;
+    static final long MAX_BOX_SIZE = 1000000;
+    static final int BOX_HEADER_SIZE = 8;
+    static final int PSSH_FULL_HEADER_SIZE = 24; // version, flags, system id, data size
+
+    /*
+     * Fields before the child boxes of stsd (version, flags, entry count)
+     * and of visual and audio sample entries.
+     */
+    private static final int STSD_HEADER_SIZE = 8;
+    private static final int VISUAL_SAMPLE_ENTRY_SIZE = 78;
+    private static final int AUDIO_SAMPLE_ENTRY_SIZE = 28;
+
+    /*
+     * The default KID follows version, flags and 4 bytes of algorithm and IV
+     * size fields, in both tenc and the PIFF track encryption box.
+     */
+    private static final int TENC_KID_OFFSET = 8;
 
-    private Uuid playReadySystemId = new Uuid(new byte[] {
+    static final byte[] PLAYREADY_SYSTEM_ID = new byte[] {
             (byte)0x9A, (byte)0x04, (byte)0xF0, (byte)0x79, (byte)0x98, (byte)0x40, (byte)0x42,
             (byte)0x86, (byte)0xAB, (byte)0x92, (byte)0xE6, (byte)0x5B, (byte)0xE0, (byte)0x88,
             (byte)0x5F, (byte)0x95
-    });
+    };
 
-    private Uuid uuidProtSysSpecificHeaderBox = new Uuid(new byte[] {
+    static final byte[] PIFF_PSSH_UUID = new byte[] {
             (byte)0xD0, (byte)0x8A, (byte)0x4F, (byte)0x18, (byte)0x10, (byte)0xF3, (byte)0x4A,
             (byte)0x82, (byte)0xB6, (byte)0xC8, (byte)0x32, (byte)0xD8, (byte)0xAB, (byte)0xA1,
             (byte)0x83, (byte)0xD3
-    });
+    };
+
+    static final byte[] PIFF_TENC_UUID = new byte[] {
+            (byte)0x89, (byte)0x74, (byte)0xDB, (byte)0xCE, (byte)0x7B, (byte)0xE7, (byte)0x4C,
+            (byte)0x51, (byte)0x84, (byte)0xF9, (byte)0x71, (byte)0x48, (byte)0xF9, (byte)0x88,
+            (byte)0x25, (byte)0x54
+    };
+
+    private static final int INITIAL_DEPTH = 8;
+
+    static final BoxType PSSH_BOX_TYPE = new BoxType(BOX_TYPE_PSSH);
 
-    private BoxType ftypBoxType = new BoxType("ftyp");
-    private BoxType moovBoxType = new BoxType("moov");
-    private BoxType psshBoxType = new BoxType("pssh");
+    static final BoxType PIFF_PSSH_BOX_TYPE = new BoxType(new Uuid(PIFF_PSSH_UUID));
 
-    private BoxType protSysSpecificHeaderBoxType = new BoxType(uuidProtSysSpecificHeaderBox);
+    /*
+     * Horspool shift table for finding the PlayReady system id
+     */
+    private static final int[] PLAYREADY_SYSTEM_ID_SHIFT = new int[256];
+
+    static {
+        int length = PLAYREADY_SYSTEM_ID.length;
+        for (int i = 0; i < PLAYREADY_SYSTEM_ID_SHIFT.length; i++) {
+            PLAYREADY_SYSTEM_ID_SHIFT[i] = length;
+        }
+        for (int i = 0; i < length - 1; i++) {
+            PLAYREADY_SYSTEM_ID_SHIFT[PLAYREADY_SYSTEM_ID[i] & 0xFF] = length - 1 - i;
+        }
+    }
+
+    private static final ThreadLocal<DrmPiffParser> sThreadParser =
+            new ThreadLocal<DrmPiffParser>() {
+
+                @Override
+                protected DrmPiffParser initialValue() {
+                    return new DrmPiffParser();
+                }
+            };
 
-    private RandomAccessFile mFile;
-    private boolean mExtendedParsing;
+    private DataSource mSource;
     private long mOffset;
-    private SparseArray<Box> mFileStructure = new SparseArray<Box>();
+    private boolean mFragmentScan = false;
+    private long mBytesRead = 0;
+    private PsshIndex mPsshIndex = new PsshIndex();
+    private List<PsshIndex> mFragments = null;
+    private boolean mKidScan = false;
+    private byte[] mDefaultKid = null;
+
+    /*
+     * Box decoded by readBox(), the size is resolved to the actual size for
+     * boxes that extend to the end of the file.
+     */
+    private long mBoxOffset;
+    private long mBoxSize;
+    private int mBoxType;
+    private boolean mBoxIsPiffPssh;
+    private boolean mBoxIsPiffTenc;
+
+    /*
+     * Ends of the containers (moov, moof, traf) being parsed, reused between
+     * parses.
+     */
+    private long[] mContainerEnds = new long[INITIAL_DEPTH];
+    private int mDepth = 0;
 
     /**
      *  Creates a parser for piff files.
      */
     public DrmPiffParser() {
         DrmLog.debug("start");
-        mExtendedParsing = false;
         mOffset = 0;
         DrmLog.debug("end");
     }
 
+    /**
+     * Returns a parser owned by the calling thread. It is reset by each
+     * parse, so results must be used before the next parse on that thread.
+     *
+     * @return parser of current thread
+     */
+    public static DrmPiffParser getThreadInstance() {
+        return sThreadParser.get();
+    }
+
+    /**
+     * Clears the state of previous parses so that the parser can be reused.
+     * Results returned earlier are not affected.
+     */
+    public void reset() {
+        mSource = null;
+        mOffset = 0;
+        mFragmentScan = false;
+        mBytesRead = 0;
+        mPsshIndex = new PsshIndex();
+        mFragments = null;
+        mKidScan = false;
+        mDefaultKid = null;
+        mDepth = 0;
+    }
+
     /**
      * Extracts pssh box from file header
      *
@@ -108,6 +213,189 @@ public class DrmPiffParser {
         return getPlayReadyHeader(playReadyObjects);
     }
 
+    /**
+     * Indexes all protection system specific header boxes in moov.
+     *
+     * @param path
+     * @return index, empty if file has no boxes or could not be parsed
+     */
+    public PsshIndex getPsshIndex(String path) {
+        DrmLog.debug("start");
+        parseFile(path);
+        DrmLog.debug("end");
+        return mPsshIndex;
+    }
+
+    /**
+     * Scans moof fragments for protection system specific header boxes, as
+     * used by content with rotating keys. The boxes of moof and its traf
+     * boxes are read, mdat and other boxes are skipped using their size.
+     *
+     * @param path
+     * @param byteBudget maximum number of bytes to read, excluding skipped
+     *            boxes. The scan stops at the first box beyond the budget.
+     * @return one index per moof, in file order, possibly empty
+     */
+    public List<PsshIndex> getFragmentPsshIndexes(String path, long byteBudget) {
+        DrmLog.debug("start");
+        List<PsshIndex> fragments = new ArrayList<PsshIndex>();
+        try {
+            DataSource source = DataSource.open(path);
+            try {
+                fragments = getFragmentPsshIndexes(source, byteBudget);
+            } finally {
+                source.close();
+            }
+        } catch (IOException e) {
+            DrmLog.logException(e);
+        }
+        DrmLog.debug("end");
+        return fragments;
+    }
+
+    /**
+     * Scans moof fragments of an already opened source, see
+     * getFragmentPsshIndexes(String, long). The source is not closed.
+     */
+    public List<PsshIndex> getFragmentPsshIndexes(DataSource source, long byteBudget) {
+        DrmLog.debug("start");
+        reset();
+        List<PsshIndex> fragments = new ArrayList<PsshIndex>();
+        mSource = source;
+        try {
+            mFragmentScan = true;
+            mFragments = fragments;
+            parse(byteBudget);
+        } finally {
+            reset();
+        }
+        DrmLog.debug("end");
+        return fragments;
+    }
+
+    /**
+     * Fallback for files that can not be parsed box by box, e.g. files with
+     * a junk prefix, broken box sizes or a non-PIFF brand. The bytes are
+     * searched for the PlayReady system id, and each hit is validated in
+     * place as part of a pssh or PIFF uuid box.
+     *
+     * @param path
+     * @param limit number of bytes from start of file to search
+     * @return header, or null if not found
+     */
+    public String scanPlayReadyHeader(String path, long limit) {
+        DrmLog.debug("start");
+        String header = null;
+        try {
+            DataSource source = DataSource.open(path);
+            try {
+                header = getPlayReadyHeader(scanPlayReadyObjects(source, limit));
+            } finally {
+                source.close();
+            }
+        } catch (IOException e) {
+            DrmLog.logException(e);
+        }
+        DrmLog.debug("end");
+        return header;
+    }
+
+    /**
+     * Searches source for a valid PlayReady pssh or PIFF uuid box, in one
+     * linear pass with a Horspool search for the system id.
+     *
+     * @param source
+     * @param limit number of bytes from start of source to search
+     * @return PlayReady Objects of first valid box, or null
+     */
+    public static byte[] scanPlayReadyObjects(DataSource source, long limit) {
+        DrmLog.debug("start");
+        byte[] result = null;
+        int length = PLAYREADY_SYSTEM_ID.length;
+        long end = Math.min(source.size(), limit);
+        long pos = 0;
+        while (result == null && pos + length <= end) {
+            int last = source.getUint8(pos + length - 1);
+            if (last < 0) {
+                break;
+            }
+            if (last == (PLAYREADY_SYSTEM_ID[length - 1] & 0xFF)
+                    && source.matches(pos, PLAYREADY_SYSTEM_ID)) {
+                // system id follows version and flags of a full box
+                result = validatePsshBox(source, pos - 4 - BOX_HEADER_SIZE, BOX_TYPE_PSSH);
+                if (result == null) {
+                    result = validatePsshBox(source, pos - 4 - Uuid.UUID_LEN - BOX_HEADER_SIZE,
+                            BOX_TYPE_UUID);
+                }
+            }
+            pos += PLAYREADY_SYSTEM_ID_SHIFT[last];
+        }
+        DrmLog.debug("end");
+        return result;
+    }
+
+    private static byte[] validatePsshBox(DataSource source, long offset, int type) {
+        if (offset < 0 || source.getUint32(offset + 4) != (type & 0xFFFFFFFFL)) {
+            return null;
+        }
+        long size = source.getUint32(offset);
+        if (size < BOX_HEADER_SIZE + PSSH_FULL_HEADER_SIZE || size > MAX_BOX_SIZE
+                || !source.isAvailable(offset, (int)size)) {
+            return null;
+        }
+        byte[] box = new byte[(int)size];
+        source.get(offset, box, 0, box.length);
+        return getPlayReadyObjectsFromPsshBox(box);
+    }
+
+    /**
+     * Parses data from an already opened source, e.g. a remote file read
+     * with range requests. Only box headers are read for boxes that are
+     * skipped. The source is not closed.
+     *
+     * @param source
+     * @return header, or null if not found
+     */
+    public String getPlayReadyHeader(DataSource source) {
+        DrmLog.debug("start");
+        reset();
+        mSource = source;
+        try {
+            parse(Long.MAX_VALUE);
+        } finally {
+            mSource = null;
+        }
+        DrmLog.debug("end");
+        return getPlayReadyHeader(getPlayReadyObjects());
+    }
+
+    /**
+     * Reads the default KID of the first encrypted track, from
+     * moov/trak/mdia/minf/stbl/stsd/encv|enca/sinf/schi/tenc or the PIFF
+     * track encryption box. Only box headers are read on the way, the
+     * PlayReady header is neither extracted nor decoded.
+     *
+     * Used as part of a cache key, see HeaderCache.descriptorKey().
+     *
+     * @param source opened source, not closed
+     * @return 16 byte KID in file byte order, or null if not found
+     */
+    public byte[] getDefaultKid(DataSource source) {
+        DrmLog.debug("start");
+        reset();
+        mSource = source;
+        mKidScan = true;
+        byte[] kid;
+        try {
+            parse(Long.MAX_VALUE);
+            kid = mDefaultKid;
+        } finally {
+            reset();
+        }
+        DrmLog.debug("end");
+        return kid;
+    }
+
     /**
      * Extract PlayReady header from pssh data.
      *
@@ -166,258 +454,421 @@ public class DrmPiffParser {
         return result;
     }
 
-    private boolean isPiffFile(Boxes.FileTypeBox box) {
+    /**
+     * Extract PlayReady header from pssh data and parse it.
+     *
+     * @param playReadyObjects
+     * @return header, or null if not found
+     */
+    public static PlayReadyHeader parsePlayReadyHeader(byte[] playReadyObjects) {
+        return PlayReadyHeader.parse(getPlayReadyHeader(playReadyObjects));
+    }
+
+    /**
+     * Extracts PlayReady Objects from a complete pssh box, e.g. the content
+     * of a cenc:pssh element in a DASH MPD. Both CENC pssh (version 0 and 1)
+     * and the PIFF uuid box are accepted.
+     *
+     * @param box pssh box including box header
+     * @return PlayReady Objects, or null if box is not a PlayReady pssh box
+     */
+    public static byte[] getPlayReadyObjectsFromPsshBox(byte[] box) {
         DrmLog.debug("start");
-        if (box.majorBrand == PIFF_BRAND) {
-            DrmLog.debug("end");
-            return box.minorVersion == PIFF_MINOR_VERSION;
-        }
-        for (int i = 0; i < box.compatibleBrands.size(); ++i) {
-            if (box.compatibleBrands.get(i) == PIFF_BRAND) {
+        byte[] result = null;
+        if (box != null && box.length >= BOX_HEADER_SIZE) {
+            long size = Helper.Uint32FromBuffer(box, 0) & 0xFFFFFFFFL;
+            int type = Helper.Uint32FromBuffer(box, 4);
+            int headerSize = BOX_HEADER_SIZE;
+            if (type == BOX_TYPE_UUID && box.length >= BOX_HEADER_SIZE + Uuid.UUID_LEN
+                    && matches(box, BOX_HEADER_SIZE, PIFF_PSSH_UUID)) {
+                headerSize += Uuid.UUID_LEN;
+            } else if (type != BOX_TYPE_PSSH) {
                 DrmLog.debug("end");
-                return true;
+                return null;
+            }
+            if (size == box.length) {
+                result = getPlayReadyData(box, headerSize, box.length - headerSize);
             }
         }
         DrmLog.debug("end");
-        return false;
+        return result;
     }
 
-    private boolean readBytes(byte[] buffer, int numBytes) {
-        DrmLog.debug("start");
-        long readed = 0;
-
-        try {
-            readed = mFile.read(buffer, 0, numBytes);
-            DrmLog.debug("end");
-            return readed == numBytes;
-        } catch (IOException ex) {
-            DrmLog.error("IOException");
-            return false;
+    /*
+     * Decodes the body of a pssh full box, i.e. everything after the box
+     * header. KIDs of version 1 boxes are skipped.
+     *
+     * @return data of box if system id is PlayReady, otherwise null
+     */
+    static byte[] getPlayReadyData(byte[] buffer, int offset, int length) {
+        int end = offset + length;
+        if (length < PSSH_FULL_HEADER_SIZE) {
+            return null;
+        }
+        int version = buffer[offset] & 0xFF;
+        if (!matches(buffer, offset + 4, PLAYREADY_SYSTEM_ID)) {
+            return null;
         }
+        long pos = offset + 4 + Uuid.UUID_LEN;
+        if (version > 0) {
+            long kidCount = Helper.Uint32FromBuffer(buffer, (int)pos) & 0xFFFFFFFFL;
+            pos += 4 + kidCount * Uuid.UUID_LEN;
+            if (pos + 4 > end) {
+                return null;
+            }
+        }
+        long dataSize = Helper.Uint32FromBuffer(buffer, (int)pos) & 0xFFFFFFFFL;
+        pos += 4;
+        if (pos + dataSize != end) {
+            return null;
+        }
+        return Arrays.copyOfRange(buffer, (int)pos, end);
     }
 
-    private boolean setFilePos(long offset) {
-        DrmLog.debug("start");
-        try {
-            mFile.seek(offset);
-            DrmLog.debug("end");
-            return true;
-        } catch (IOException ex) {
-            DrmLog.error("IOException");
-            return false;
+    static boolean matches(byte[] buffer, int offset, byte[] value) {
+        for (int i = 0; i < value.length; i++) {
+            if (buffer[offset + i] != value[i]) {
+                return false;
+            }
         }
+        return true;
     }
 
-    private long setFilePos() {
+    /*
+     * Checks the body of a ftyp box, i.e. everything after the box header.
+     */
+    static boolean isPiffFile(byte[] buffer, int offset, int length) {
         DrmLog.debug("start");
-        try {
-            DrmLog.debug("end");
-            return mFile.length();
-        } catch (IOException ex) {
-            DrmLog.error("IOException");
-            return -1;
+        boolean res = false;
+        if (length >= 8) {
+            int majorBrand = Helper.Uint32FromBuffer(buffer, offset);
+            int minorVersion = Helper.Uint32FromBuffer(buffer, offset + 4);
+            res = majorBrand == PIFF_BRAND && minorVersion == PIFF_MINOR_VERSION;
+            for (int i = offset + 8; !res && majorBrand != PIFF_BRAND && i + 4 <= offset + length;
+                    i += 4) {
+                res = Helper.Uint32FromBuffer(buffer, i) == PIFF_BRAND;
+            }
         }
+        DrmLog.debug("end");
+        return res;
     }
 
-    private Box createFileTypeBox(long offset, long size, BoxType boxType) {
+    static boolean isAsciiPrintable(int ch) {
         DrmLog.debug("start");
-        Box box = null;
-        Boxes.FileTypeBox derivedBox = new Boxes.FileTypeBox(offset, size, boxType);
-        int bufferSize = (int)(derivedBox.end() - mOffset);
-
-        if (bufferSize >= 8) {
-            byte[] buffer = new byte[bufferSize];
-
-            if (readBytes(buffer, bufferSize)) {
-                mOffset += bufferSize;
-                derivedBox.majorBrand = Helper.Uint32FromBuffer(buffer, 0);
-                derivedBox.minorVersion = Helper.Uint32FromBuffer(buffer, 4);
+        return ch >= 32 && ch < 127;
+    }
 
-                for (int i = 8; i < bufferSize; i += 4) {
-                    derivedBox.compatibleBrands.add(Helper.Uint32FromBuffer(buffer, i));
-                }
+    /*
+     * Decodes the header of the box at mOffset, leaving mOffset at the start
+     * of its body. Nothing is allocated.
+     *
+     * @return false if there is no valid box at mOffset
+     */
+    private boolean readBox() {
+        DrmLog.debug("start");
+        long offset = mOffset;
+        if (!mSource.isAvailable(offset, BOX_HEADER_SIZE)) {
+            DrmLog.debug("end");
+            return false;
+        }
+        if (!isAsciiPrintable(mSource.getUint8(offset + 4))
+                || !isAsciiPrintable(mSource.getUint8(offset + 5))
+                || !isAsciiPrintable(mSource.getUint8(offset + 6))
+                || !isAsciiPrintable(mSource.getUint8(offset + 7))) {
+            DrmLog.debug("end");
+            return false;
+        }
+        long size = mSource.getUint32(offset);
+        int type = (int)mSource.getUint32(offset + 4);
+        long pos = offset + BOX_HEADER_SIZE;
 
-                if (isPiffFile(derivedBox)) {
-                    box = derivedBox;
-                }
+        if (size == 1) {
+            // 64-bit largesize follows the box type
+            if (!mSource.isAvailable(pos, 8)) {
+                DrmLog.debug("end");
+                return false;
+            }
+            size = mSource.getUint64(pos);
+            pos += 8;
+        }
+        boolean isPiffPssh = false;
+        boolean isPiffTenc = false;
+        if (type == BOX_TYPE_UUID) {
+            if (!mSource.isAvailable(pos, Uuid.UUID_LEN)) {
+                DrmLog.debug("end");
+                return false;
             }
+            isPiffPssh = mSource.matches(pos, PIFF_PSSH_UUID);
+            isPiffTenc = !isPiffPssh && mKidScan && mSource.matches(pos, PIFF_TENC_UUID);
+            pos += Uuid.UUID_LEN;
+        }
+        // Only boxes that we copy data from are limited in size, see
+        // parseFileType and parseProtSysSpecificHeader, larger boxes are just
+        // skipped. Files being downloaded may be smaller than the boxes in
+        // them, reading stops when we reach the end of data.
+        if (size < 0 || size > 0 && offset + size < pos) {
+            DrmLog.debug("end");
+            return false;
         }
+        if (size == 0) {
+            // box extends to end of file
+            size = Math.max(mSource.size() - offset, pos - offset);
+        }
+        mBytesRead += pos - offset;
+        mBoxOffset = offset;
+        mBoxSize = size;
+        mBoxType = type;
+        mBoxIsPiffPssh = isPiffPssh;
+        mBoxIsPiffTenc = isPiffTenc;
+        mOffset = pos;
         DrmLog.debug("end");
-        return box;
+        return true;
     }
 
-    private Box createProtSysSpecificHeaderBox(long offset, long size, BoxType boxType) {
-        DrmLog.debug("start");
-        Box box = null;
-        Boxes.ProtSysSpecificHeaderBox derivedBox = new Boxes.ProtSysSpecificHeaderBox(offset,
-                size, boxType);
-
-        byte[] buffer = new byte[24];
-        if (readBytes(buffer, buffer.length)) {
-            mOffset += buffer.length;
-            derivedBox.systemId = new Uuid(buffer, 4, Uuid.UUID_LEN);
-            derivedBox.dataSize = Helper.Uint32FromBuffer(buffer, 20);
-            if (mOffset + derivedBox.dataSize == derivedBox.end()) {
-                derivedBox.data = new byte[derivedBox.dataSize];
-
-                if (readBytes(derivedBox.data, derivedBox.dataSize)) {
-                    mOffset += derivedBox.dataSize;
-                    box = derivedBox;
+    /*
+     * Handles body of the box decoded by readBox().
+     *
+     * @return false if parsing should stop
+     */
+    private boolean handleBox() {
+        if (mKidScan) {
+            return handleTrackBox();
+        }
+        long end = mBoxOffset + mBoxSize;
+        switch (mBoxType) {
+            case BOX_TYPE_MOOF:
+            case BOX_TYPE_TRAF:
+                if (!mFragmentScan) {
+                    break;
                 }
-            }
+                // fall through
+            case BOX_TYPE_MOOV:
+                // container, continue with its children
+                if (mDepth == mContainerEnds.length) {
+                    mContainerEnds = Arrays.copyOf(mContainerEnds, mDepth * 2);
+                }
+                mContainerEnds[mDepth++] = end;
+                return true;
+            case BOX_TYPE_FTYP:
+                return parseFileType();
+            case BOX_TYPE_UUID:
+                if (!mBoxIsPiffPssh) {
+                    break;
+                }
+                // fall through
+            case BOX_TYPE_PSSH:
+                return parseProtSysSpecificHeader();
+            default:
+                break;
         }
-        DrmLog.debug("end");
-        return box;
+        // Skipped boxes are never read, so there is no need to limit their
+        // size, a 64-bit mdat is just a jump in the file.
+        mOffset = end;
+        return true;
     }
 
-    private Box createBox(long offset, long size, BoxType boxType) {
-        DrmLog.debug("start");
-        Box box = null;
-        if (boxType.equals(moovBoxType)) {
-            box = new Box(offset, size, boxType);
-        } else if (boxType.equals(ftypBoxType)) {
-            box = createFileTypeBox(offset, size, boxType);
-        } else if (boxType.equals(psshBoxType) || boxType.equals(protSysSpecificHeaderBoxType)) {
-            box = createProtSysSpecificHeaderBox(offset, size, boxType);
-        } else {
-            if (size > 0) {
-                long filePos = offset + size;
-                if (setFilePos(filePos)) {
-                    mOffset = filePos;
-                    box = new Box(offset, size, boxType);
+    /*
+     * Handles body of the box decoded by readBox() when looking for the
+     * default KID. Only the path down to tenc is entered.
+     *
+     * @return false if parsing should stop
+     */
+    private boolean handleTrackBox() {
+        long end = mBoxOffset + mBoxSize;
+        int skip = 0;
+        switch (mBoxType) {
+            case BOX_TYPE_STSD:
+                skip = STSD_HEADER_SIZE;
+                break;
+            case BOX_TYPE_ENCV:
+                skip = VISUAL_SAMPLE_ENTRY_SIZE;
+                break;
+            case BOX_TYPE_ENCA:
+                skip = AUDIO_SAMPLE_ENTRY_SIZE;
+                break;
+            case BOX_TYPE_MOOV:
+            case BOX_TYPE_TRAK:
+            case BOX_TYPE_MDIA:
+            case BOX_TYPE_MINF:
+            case BOX_TYPE_STBL:
+            case BOX_TYPE_SINF:
+            case BOX_TYPE_SCHI:
+                break;
+            case BOX_TYPE_UUID:
+                if (!mBoxIsPiffTenc) {
+                    mOffset = end;
+                    return true;
                 }
-            } else {
-                long fileSize;
-                fileSize = setFilePos();
-                if (fileSize != -1) {
-                    mOffset = fileSize;
-                    size = mOffset - offset;
-                    box = new Box(offset, size, boxType);
+                // fall through
+            case BOX_TYPE_TENC:
+                if (mOffset + TENC_KID_OFFSET + Uuid.UUID_LEN <= end) {
+                    byte[] kid = new byte[Uuid.UUID_LEN];
+                    if (mSource.get(mOffset + TENC_KID_OFFSET, kid, 0, kid.length)) {
+                        mDefaultKid = kid;
+                        return false;
+                    }
                 }
-            }
+                mOffset = end;
+                return true;
+            default:
+                mOffset = end;
+                return true;
         }
-        DrmLog.debug("end");
-        return box;
+        // container, continue with its children
+        if (mOffset + skip > end) {
+            mOffset = end;
+            return true;
+        }
+        mOffset += skip;
+        if (mDepth == mContainerEnds.length) {
+            mContainerEnds = Arrays.copyOf(mContainerEnds, mDepth * 2);
+        }
+        mContainerEnds[mDepth++] = end;
+        return true;
     }
 
-    private boolean isAsciiPrintable(byte ch) {
+    /*
+     * Brands are decoded directly from the source, nothing is copied.
+     *
+     * @return true if file is a piff file
+     */
+    private boolean parseFileType() {
         DrmLog.debug("start");
-        return ch >= 32 && ch < 127;
+        boolean res = false;
+        long end = mBoxOffset + mBoxSize;
+
+        if (end - mOffset >= 8 && end - mOffset <= MAX_BOX_SIZE && end <= mSource.size()) {
+            int majorBrand = (int)mSource.getUint32(mOffset);
+            int minorVersion = (int)mSource.getUint32(mOffset + 4);
+            res = majorBrand == PIFF_BRAND && minorVersion == PIFF_MINOR_VERSION;
+            for (long pos = mOffset + 8; !res && majorBrand != PIFF_BRAND && pos + 4 <= end;
+                    pos += 4) {
+                res = (int)mSource.getUint32(pos) == PIFF_BRAND;
+            }
+            mBytesRead += end - mOffset;
+            mOffset = end;
+        }
+        DrmLog.debug("end");
+        return res;
     }
 
-    private Box readBox(long maxSize) {
+    /*
+     * Adds the pssh box, or PIFF uuid box, to the current index.
+     *
+     * @return false if box is invalid
+     */
+    private boolean parseProtSysSpecificHeader() {
         DrmLog.debug("start");
-        long offset = mOffset;
-        byte[] buffer = new byte[8];
-        if (!readBytes(buffer, buffer.length)) {
-            DrmLog.debug("end");
-            return null;
-        }
-        if (!isAsciiPrintable(buffer[4]) || !isAsciiPrintable(buffer[5])
-                || !isAsciiPrintable(buffer[6]) || !isAsciiPrintable(buffer[7])) {
+        long end = mBoxOffset + mBoxSize;
+
+        if (!mSource.isAvailable(mOffset, PSSH_FULL_HEADER_SIZE)) {
             DrmLog.debug("end");
-            return null;
+            return false;
         }
-        mOffset += buffer.length;
-        long size = Helper.Uint32FromBuffer(buffer, 0);
-
-        BoxType boxType = new BoxType(buffer, 4);
-
-        if (size == 1) {
-            if (!readBytes(buffer, buffer.length)) {
+        Boxes.ProtSysSpecificHeaderBox box = new Boxes.ProtSysSpecificHeaderBox(mBoxOffset,
+                mBoxSize, mBoxIsPiffPssh ? PIFF_PSSH_BOX_TYPE : PSSH_BOX_TYPE);
+        box.version = mSource.getUint8(mOffset);
+        box.systemId = new Uuid();
+        mSource.get(mOffset + 4, box.systemId.value, 0, Uuid.UUID_LEN);
+        long pos = mOffset + 4 + Uuid.UUID_LEN;
+        if (box.version > 0) {
+            // version 1 lists the KIDs that the data applies to
+            long kidCount = mSource.getUint32(pos);
+            pos += 4;
+            if (kidCount < 0 || pos + kidCount * Uuid.UUID_LEN + 4 > end) {
                 DrmLog.debug("end");
-                return null;
+                return false;
             }
-            mOffset += buffer.length;
-            size = Helper.Uint64FromBuffer(buffer, 0);
-        }
-        if (boxType.type == BOX_TYPE_UUID) {
-            boxType.uuid = new Uuid();
-            if (boxType.uuid == null || !readBytes(boxType.uuid.value, Uuid.UUID_LEN)) {
-                DrmLog.debug("end");
-                return null;
+            for (long i = 0; i < kidCount; i++) {
+                Uuid kid = new Uuid();
+                mSource.get(pos, kid.value, 0, Uuid.UUID_LEN);
+                box.kids.add(kid);
+                pos += Uuid.UUID_LEN;
             }
-            mOffset += Uuid.UUID_LEN;
         }
-        // to avoid OutOfMemory in corrupt files we check that box size is not
-        // greater than file size, and in case of URI renew we need to consider
-        // file size less than box size
-        if (size > 0 && offset + size < mOffset || size > ((maxSize < MAX_BOX_SIZE) ? MAX_BOX_SIZE
-                : maxSize)) {
+        long dataSize = mSource.getUint32(pos);
+        pos += 4;
+        if (dataSize < 0 || pos + dataSize != end || dataSize > MAX_BOX_SIZE) {
             DrmLog.debug("end");
-            return null;
+            return false;
         }
-
-        Box b = createBox(offset, size, boxType);
+        box.dataOffset = pos;
+        box.dataSize = (int)dataSize;
+        box.data = new byte[box.dataSize];
+        if (!mSource.get(pos, box.data, 0, box.dataSize)) {
+            DrmLog.debug("end");
+            return false;
+        }
+        mBytesRead += end - mOffset;
+        mOffset = end;
+        mPsshIndex.add(box);
         DrmLog.debug("end");
-        return b;
+        return true;
     }
 
     private void parseFile(String path) {
         DrmLog.debug("start");
+        reset();
         try {
-            mFile = new RandomAccessFile(path, "r");
-            long fileSize = mFile.length();
-            Box box = readBox(fileSize);
-            if (box != null) {
-                if (!box.boxType.equals(ftypBoxType)) {
-                } else {
-                    List<Box> stack = new ArrayList<Box>();
-
-                    long limitedParsingEnd = Long.MAX_VALUE;
-                    do {
-                        while (stack.size() > 0 && box.end() > stack.get(stack.size() - 1).end()) {
-                            stack.remove(stack.size() - 1);
-                        }
-                        if (box.boxType.equals(new BoxType("uuid"))
-                                || box.boxType.equals(psshBoxType)) {
-                            limitedParsingEnd = box.end();
-                        }
-                        if (stack.size() == 0) {
-                            if (box.boxType.equals(moovBoxType)) {
-                                limitedParsingEnd = box.end();
-                            }
-                            mFileStructure.put(box.boxType.type, box);
-                        } else {
-                            stack.get(stack.size() - 1).subBoxes.put(box.boxType.type, box);
-                        }
-                        if (!mExtendedParsing && mOffset == limitedParsingEnd) {
-                            break;
-                        }
-                        stack.add(box);
-                        box = readBox(fileSize);
-                    } while (box != null);
-                }
+            mSource = DataSource.open(path);
+            try {
+                parse(Long.MAX_VALUE);
+            } finally {
+                mSource.close();
+                mSource = null;
             }
-            mFile.close();
         } catch (IOException e) {
             DrmLog.logException(e);
         }
         DrmLog.debug("end");
     }
 
-    private byte[] getPlayReadyObjects() {
+    /*
+     * Parses a piff file from its ftyp. Normally parsing stops at the end of
+     * moov. In fragment scan mode all top level boxes are walked, and the
+     * boxes of each moof are added to an index of their own.
+     */
+    private void parse(long byteBudget) {
         DrmLog.debug("start");
-        byte[] result = null;
-        Box box = mFileStructure.get(Helper.BoxTypeForName("moov"), Box.EmptyBox).subBoxes.get(
-                Helper.BoxTypeForName("uuid"), Box.EmptyBox);
-        if (box.boxType.equals(protSysSpecificHeaderBoxType)) {
-            Boxes.ProtSysSpecificHeaderBox derivedBox = (Boxes.ProtSysSpecificHeaderBox)box;
-            if (derivedBox.systemId.equals(playReadySystemId)) {
-                result = derivedBox.data;
-            }
+        if (!readBox() || mBoxType != BOX_TYPE_FTYP) {
+            DrmLog.debug("end");
+            return;
+        }
+        // Track encryption is the same for all brands, e.g. CENC, so the
+        // brand is only checked when looking for pssh
+        boolean isPiff = parseFileType();
+        if (!isPiff && !(mKidScan && mOffset == mBoxOffset + mBoxSize)) {
+            DrmLog.debug("end");
+            return;
         }
-        if (result == null) {
-            Box boxUV = mFileStructure.get(Helper.BoxTypeForName("moov"), Box.EmptyBox).subBoxes
-                    .get(Helper.BoxTypeForName("pssh"), Box.EmptyBox);
-            if (boxUV != null && boxUV.boxType.equals(psshBoxType)) {
-                Boxes.ProtSysSpecificHeaderBox derivedBox = (Boxes.ProtSysSpecificHeaderBox)boxUV;
-                if (derivedBox.systemId.equals(playReadySystemId)) {
-                    result = derivedBox.data;
+        PsshIndex moovIndex = mPsshIndex;
+        while (mBytesRead <= byteBudget && readBox()) {
+            if (mDepth == 0) {
+                if (mFragmentScan && mBoxType == BOX_TYPE_MOOF) {
+                    mPsshIndex = new PsshIndex();
+                    mFragments.add(mPsshIndex);
+                } else {
+                    // boxes outside moof, e.g. in moov
+                    mPsshIndex = moovIndex;
                 }
             }
+            if (!handleBox()) {
+                break;
+            }
+            boolean inContainer = mDepth > 0;
+            while (mDepth > 0 && mOffset >= mContainerEnds[mDepth - 1]) {
+                mDepth--;
+            }
+            if (!mFragmentScan && inContainer && mDepth == 0) {
+                // end of moov, nothing more to find
+                break;
+            }
         }
+        mPsshIndex = moovIndex;
         DrmLog.debug("end");
-        return result;
+    }
+
+    private byte[] getPlayReadyObjects() {
+        return mPsshIndex.getPlayReadyObjects();
     }
 }
@@ -0,0 +1,414 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is DRM License Service.
+ *
+ * The Initial Developer of the Original Code is Sony Mobile Communications Inc.
+ * Portions created by Sony Mobile Communications Inc. are Copyright (C) 2014
+ * Sony Mobile Communications Inc. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package com.sonyericsson.android.drm.drmlicenseservice.parser;
+
+import com.sonyericsson.android.drm.drmlicenseservice.utils.DrmLog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Scans a directory tree for protected files and lists the KID and LA_URL
+ * of each file.
+ *
+ * Directories and files are parsed in parallel on a fork/join pool. Each
+ * directory is visited once by its canonical path, so symbolic links that
+ * point back into the tree do not make the walk recurse forever. The result
+ * is kept in a sidecar index keyed by path and modification time, so that a
+ * re-scan only parses files that are new or have changed.
+ *
+ * The index is a log of records. A re-scan appends records for the changed
+ * and removed files only, and the index is rewritten once the log holds
+ * more than twice as many records as there are files.
+ *
+ * Only the parser and utils packages are needed, together with an xmlpull
+ * implementation (e.g. kxml2), so the scan can also be run from command line
+ * on a mounted library:
+ *
+ * java -cp ... com.sonyericsson.android.drm.drmlicenseservice.parser.KidScanner
+ * library-dir [index-file]
+ */
+public class KidScanner {
+
+    private static final int INDEX_MAGIC = ('K' << 24 | 'I' << 16 | 'D' << 8 | 'X');
+
+    private static final int INDEX_VERSION = 2;
+
+    private static final int RECORD_ENTRY = 1;
+
+    private static final int RECORD_REMOVED = 2;
+
+    private static final int COMPACT_MIN_RECORDS = 1024;
+
+    /**
+     * Scan result for one file. Files without a PlayReady header are listed
+     * too, with null KID and LA_URL, so that they are not parsed again.
+     */
+    public static class Entry {
+        public final String path;
+        public final long lastModified;
+        public final String kid;
+        public final String laUrl;
+
+        public Entry(String path, long lastModified, String kid, String laUrl) {
+            this.path = path;
+            this.lastModified = lastModified;
+            this.kid = kid;
+            this.laUrl = laUrl;
+        }
+
+        public boolean isProtected() {
+            return kid != null || laUrl != null;
+        }
+    }
+
+    private File mIndexFile;
+
+    private Map<String, Entry> mPrevious = Collections.emptyMap();
+
+    private ConcurrentHashMap<String, Entry> mEntries;
+
+    private Set<String> mVisited;
+
+    /*
+     * Number of records in index file, -1 if it must be rewritten
+     */
+    private int mIndexRecords = -1;
+
+    private AtomicInteger mParsed = new AtomicInteger();
+
+    private AtomicInteger mReused = new AtomicInteger();
+
+    /**
+     * @param indexFile sidecar index, read before and written after a scan.
+     *            May be null to always parse all files.
+     */
+    public KidScanner(File indexFile) {
+        mIndexFile = indexFile;
+    }
+
+    /**
+     * Scans directory tree and updates the index.
+     *
+     * @param root of tree
+     * @param parallelism number of threads to use
+     * @return entries by path
+     */
+    public Map<String, Entry> scan(File root, int parallelism) {
+        DrmLog.debug("start");
+        mPrevious = readIndex(mIndexFile);
+        mEntries = new ConcurrentHashMap<String, Entry>();
+        mVisited = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        mParsed.set(0);
+        mReused.set(0);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new DirectoryAction(root));
+        } finally {
+            pool.shutdown();
+        }
+        Map<String, Entry> result = new TreeMap<String, Entry>(mEntries);
+        updateIndex(mIndexFile, result);
+        DrmLog.debug("end");
+        return result;
+    }
+
+    /**
+     * @return number of files parsed by last scan
+     */
+    public int getParsedCount() {
+        return mParsed.get();
+    }
+
+    /**
+     * @return number of files taken from the index by last scan
+     */
+    public int getReusedCount() {
+        return mReused.get();
+    }
+
+    private class DirectoryAction extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private File mDir;
+
+        DirectoryAction(File dir) {
+            mDir = dir;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                if (!mVisited.add(mDir.getCanonicalPath())) {
+                    return;
+                }
+            } catch (IOException e) {
+                DrmLog.logException(e);
+                return;
+            }
+            File[] files = mDir.listFiles();
+            if (files == null) {
+                return;
+            }
+            List<RecursiveAction> actions = new ArrayList<RecursiveAction>();
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    actions.add(new DirectoryAction(file));
+                } else if (file.isFile()) {
+                    actions.add(new FileAction(file));
+                }
+            }
+            invokeAll(actions);
+        }
+    }
+
+    private class FileAction extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private File mFile;
+
+        FileAction(File file) {
+            mFile = file;
+        }
+
+        @Override
+        protected void compute() {
+            String path = mFile.getAbsolutePath();
+            long lastModified = mFile.lastModified();
+            Entry entry = mPrevious.get(path);
+            if (entry != null && entry.lastModified == lastModified) {
+                mReused.incrementAndGet();
+            } else {
+                entry = parse(path, lastModified);
+                mParsed.incrementAndGet();
+            }
+            mEntries.put(path, entry);
+        }
+    }
+
+    private static Entry parse(String path, long lastModified) {
+        String kid = null, laUrl = null;
+        byte[] playReadyObjects = DrmPiffParser.getThreadInstance().getPsshIndex(path)
+                .getPlayReadyObjects();
+        PlayReadyHeader header = DrmPiffParser.parsePlayReadyHeader(playReadyObjects);
+        if (header != null) {
+            kid = header.getKid();
+            laUrl = header.getLaUrl();
+        }
+        return new Entry(path, lastModified, kid, laUrl);
+    }
+
+    private Map<String, Entry> readIndex(File file) {
+        Map<String, Entry> entries = new HashMap<String, Entry>();
+        mIndexRecords = -1;
+        if (file == null || !file.isFile()) {
+            return entries;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() == INDEX_MAGIC && in.readInt() == INDEX_VERSION) {
+                int records = 0;
+                int type;
+                while ((type = in.read()) != -1) {
+                    String path = in.readUTF();
+                    if (type == RECORD_REMOVED) {
+                        entries.remove(path);
+                    } else if (type == RECORD_ENTRY) {
+                        long lastModified = in.readLong();
+                        String kid = null, laUrl = null;
+                        if (in.readBoolean()) {
+                            kid = in.readUTF();
+                            laUrl = in.readUTF();
+                        }
+                        entries.put(path, new Entry(path, lastModified,
+                                kid != null && kid.length() > 0 ? kid : null,
+                                laUrl != null && laUrl.length() > 0 ? laUrl : null));
+                    } else {
+                        throw new IOException("Unknown record " + type);
+                    }
+                    records++;
+                }
+                mIndexRecords = records;
+            }
+        } catch (IOException e) {
+            // A broken tail, e.g. from an interrupted append, only means that
+            // the files of it are parsed again and the index is rewritten
+            DrmLog.logException(e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    DrmLog.logException(e);
+                }
+            }
+        }
+        return entries;
+    }
+
+    private void updateIndex(File file, Map<String, Entry> entries) {
+        if (file == null) {
+            return;
+        }
+        List<Entry> changed = new ArrayList<Entry>();
+        for (Entry entry : entries.values()) {
+            // Entries taken from the index are the same instances
+            if (mPrevious.get(entry.path) != entry) {
+                changed.add(entry);
+            }
+        }
+        List<String> removed = new ArrayList<String>();
+        for (String path : mPrevious.keySet()) {
+            if (!entries.containsKey(path)) {
+                removed.add(path);
+            }
+        }
+        int records = mIndexRecords + changed.size() + removed.size();
+        if (mIndexRecords < 0
+                || (records > COMPACT_MIN_RECORDS && records > 2 * entries.size())) {
+            writeIndex(file, entries);
+            mIndexRecords = entries.size();
+        } else if (changed.size() > 0 || removed.size() > 0) {
+            if (appendIndex(file, changed, removed)) {
+                mIndexRecords = records;
+            } else {
+                mIndexRecords = -1;
+            }
+        }
+    }
+
+    private static boolean appendIndex(File file, List<Entry> changed, List<String> removed) {
+        DataOutputStream out = null;
+        boolean ok = false;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file,
+                    true)));
+            for (String path : removed) {
+                out.writeByte(RECORD_REMOVED);
+                out.writeUTF(path);
+            }
+            for (Entry entry : changed) {
+                writeEntry(out, entry);
+            }
+            out.close();
+            out = null;
+            ok = true;
+        } catch (IOException e) {
+            DrmLog.logException(e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    DrmLog.logException(e);
+                }
+            }
+        }
+        return ok;
+    }
+
+    private static void writeIndex(File file, Map<String, Entry> entries) {
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(INDEX_VERSION);
+            for (Entry entry : entries.values()) {
+                writeEntry(out, entry);
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                DrmLog.error("Could not write " + file);
+            }
+        } catch (IOException e) {
+            DrmLog.logException(e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    DrmLog.logException(e);
+                }
+            }
+            tmp.delete();
+        }
+    }
+
+    private static void writeEntry(DataOutputStream out, Entry entry) throws IOException {
+        out.writeByte(RECORD_ENTRY);
+        out.writeUTF(entry.path);
+        out.writeLong(entry.lastModified);
+        out.writeBoolean(entry.isProtected());
+        if (entry.isProtected()) {
+            out.writeUTF(entry.kid != null ? entry.kid : "");
+            out.writeUTF(entry.laUrl != null ? entry.laUrl : "");
+        }
+    }
+
+    /**
+     * Command line entry point, prints KID, LA_URL and path of each
+     * protected file, tab separated.
+     */
+    public static void main(String[] args) {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("usage: KidScanner library-dir [index-file]");
+            System.exit(2);
+        }
+        File root = new File(args[0]);
+        File index = new File(args.length > 1 ? args[1] : ".kidindex");
+        KidScanner scanner = new KidScanner(index);
+        Map<String, Entry> entries = scanner.scan(root,
+                Runtime.getRuntime().availableProcessors());
+        for (Entry entry : entries.values()) {
+            if (entry.isProtected()) {
+                System.out.println(entry.kid + "\t" + entry.laUrl + "\t" + entry.path);
+            }
+        }
+        System.err.println(entries.size() + " files, " + scanner.getParsedCount()
+                + " parsed, " + scanner.getReusedCount() + " from index");
+    }
+}
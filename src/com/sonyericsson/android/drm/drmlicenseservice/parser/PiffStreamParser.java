@@ -0,0 +1,250 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is DRM License Service.
+ *
+ * The Initial Developer of the Original Code is Sony Mobile Communications Inc.
+ * Portions created by Sony Mobile Communications Inc. are Copyright (C) 2014
+ * Sony Mobile Communications Inc. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package com.sonyericsson.android.drm.drmlicenseservice.parser;
+
+import com.sonyericsson.android.drm.drmlicenseservice.utils.DrmLog;
+
+/**
+ * Push parser for piff files that are being downloaded.
+ *
+ * Data is fed in chunks as it arrives and each byte is looked at once. Box
+ * headers and the few boxes we need (ftyp, pssh) are buffered, everything
+ * else is skipped by counting. Parsing finishes as soon as the PlayReady pssh
+ * box in moov is complete, or when it is clear that there is none.
+ */
+public class PiffStreamParser {
+
+    private static final int MAX_HEADER_SIZE = DrmPiffParser.BOX_HEADER_SIZE + 8
+            + Uuid.UUID_LEN;
+
+    private static final int STATE_HEADER = 0;
+    private static final int STATE_BODY = 1;
+    private static final int STATE_SKIP = 2;
+    private static final int STATE_DONE = 3;
+
+    private int mState = STATE_HEADER;
+
+    private byte[] mHeader = new byte[MAX_HEADER_SIZE];
+
+    private int mHeaderRead = 0;
+
+    private int mHeaderSize = DrmPiffParser.BOX_HEADER_SIZE;
+
+    private long mPosition = 0;
+
+    private long mBoxEnd = 0;
+
+    private int mBoxType = 0;
+
+    private long mMoovEnd = -1;
+
+    private boolean mFirstBox = true;
+
+    private byte[] mBody = null;
+
+    private int mBodyRead = 0;
+
+    private byte[] mPlayReadyObjects = null;
+
+    private boolean mRequirePiffBrand;
+
+    /**
+     * Creates a parser waiting for the first byte of a piff file.
+     */
+    public PiffStreamParser() {
+        this(true);
+    }
+
+    /**
+     * Creates a parser waiting for the first byte of a file.
+     *
+     * @param requirePiffBrand false to accept any ISO base media file, e.g.
+     *            a DASH initialization segment
+     */
+    public PiffStreamParser(boolean requirePiffBrand) {
+        mRequirePiffBrand = requirePiffBrand;
+    }
+
+    /**
+     * Feeds next chunk of the file to the parser.
+     *
+     * @param buffer containing data
+     * @param offset of data in buffer
+     * @param length of data
+     * @return true if parsing is finished, further data is not needed
+     */
+    public boolean feed(byte[] buffer, int offset, int length) {
+        DrmLog.debug("start");
+        int end = offset + length;
+        while (offset < end && mState != STATE_DONE) {
+            int count;
+            switch (mState) {
+                case STATE_HEADER:
+                    count = Math.min(mHeaderSize - mHeaderRead, end - offset);
+                    System.arraycopy(buffer, offset, mHeader, mHeaderRead, count);
+                    mHeaderRead += count;
+                    mPosition += count;
+                    if (mHeaderRead == mHeaderSize) {
+                        onHeader();
+                    }
+                    break;
+                case STATE_BODY:
+                    count = Math.min(mBody.length - mBodyRead, end - offset);
+                    System.arraycopy(buffer, offset, mBody, mBodyRead, count);
+                    mBodyRead += count;
+                    mPosition += count;
+                    if (mBodyRead == mBody.length) {
+                        onBody();
+                    }
+                    break;
+                case STATE_SKIP:
+                default:
+                    count = (int)Math.min(mBoxEnd - mPosition, end - offset);
+                    mPosition += count;
+                    if (mPosition == mBoxEnd) {
+                        mState = STATE_HEADER;
+                    }
+                    break;
+            }
+            offset += count;
+            if (mState == STATE_HEADER && mHeaderRead == 0 && mPosition >= mMoovEnd
+                    && mMoovEnd > 0) {
+                // moov is finished without any PlayReady pssh
+                mState = STATE_DONE;
+            }
+        }
+        DrmLog.debug("end");
+        return mState == STATE_DONE;
+    }
+
+    /**
+     * @return true if parsing is finished
+     */
+    public boolean isDone() {
+        return mState == STATE_DONE;
+    }
+
+    /**
+     * @return number of bytes consumed by the parser
+     */
+    public long getPosition() {
+        return mPosition;
+    }
+
+    /**
+     * @return PlayReady Objects from the pssh box, or null if not found (yet)
+     */
+    public byte[] getPlayReadyObjects() {
+        return mPlayReadyObjects;
+    }
+
+    /**
+     * @return PlayReady header, or null if not found (yet)
+     */
+    public String getPlayReadyHeader() {
+        return DrmPiffParser.getPlayReadyHeader(mPlayReadyObjects);
+    }
+
+    /*
+     * Called when mHeaderSize bytes of a box header is read. The header may
+     * grow when largesize or uuid are present.
+     */
+    private void onHeader() {
+        if (mHeaderRead == DrmPiffParser.BOX_HEADER_SIZE) {
+            for (int i = 4; i < 8; i++) {
+                if (!DrmPiffParser.isAsciiPrintable(mHeader[i] & 0xFF)) {
+                    mState = STATE_DONE;
+                    return;
+                }
+            }
+            mBoxType = Helper.Uint32FromBuffer(mHeader, 4);
+            if (Helper.Uint32FromBuffer(mHeader, 0) == 1) {
+                mHeaderSize += 8;
+            }
+            if (mBoxType == DrmPiffParser.BOX_TYPE_UUID) {
+                mHeaderSize += Uuid.UUID_LEN;
+            }
+            if (mHeaderRead < mHeaderSize) {
+                return;
+            }
+        }
+        long boxStart = mPosition - mHeaderSize;
+        long size = Helper.Uint32FromBuffer(mHeader, 0) & 0xFFFFFFFFL;
+        if (size == 1) {
+            size = Helper.Uint64FromBuffer(mHeader, DrmPiffParser.BOX_HEADER_SIZE);
+        }
+        long bodySize = size - mHeaderSize;
+        boolean isPiffPssh = mBoxType == DrmPiffParser.BOX_TYPE_UUID
+                && DrmPiffParser.matches(mHeader, mHeaderSize - Uuid.UUID_LEN,
+                        DrmPiffParser.PIFF_PSSH_UUID);
+        mHeaderRead = 0;
+        mHeaderSize = DrmPiffParser.BOX_HEADER_SIZE;
+
+        if (size != 0 && bodySize < 0) {
+            mState = STATE_DONE;
+        } else if (mFirstBox) {
+            mFirstBox = false;
+            if (mBoxType != DrmPiffParser.BOX_TYPE_FTYP || size == 0
+                    || bodySize < 8 || bodySize > DrmPiffParser.MAX_BOX_SIZE) {
+                mState = STATE_DONE;
+            } else {
+                startBody(boxStart + size, bodySize);
+            }
+        } else if (mBoxType == DrmPiffParser.BOX_TYPE_MOOV && mMoovEnd < 0) {
+            // moov is a container, continue with its children
+            mMoovEnd = (size == 0) ? Long.MAX_VALUE : boxStart + size;
+        } else if (mMoovEnd > 0 && (mBoxType == DrmPiffParser.BOX_TYPE_PSSH || isPiffPssh)
+                && size != 0 && bodySize >= DrmPiffParser.PSSH_FULL_HEADER_SIZE
+                && bodySize <= DrmPiffParser.MAX_BOX_SIZE) {
+            startBody(boxStart + size, bodySize);
+        } else if (size == 0) {
+            // box extends to end of file, nothing more to find
+            mState = STATE_DONE;
+        } else {
+            mBoxEnd = boxStart + size;
+            mState = (bodySize > 0) ? STATE_SKIP : STATE_HEADER;
+        }
+    }
+
+    private void startBody(long boxEnd, long bodySize) {
+        mBoxEnd = boxEnd;
+        mBody = new byte[(int)bodySize];
+        mBodyRead = 0;
+        mState = (bodySize > 0) ? STATE_BODY : STATE_HEADER;
+    }
+
+    /*
+     * Called when a buffered box is complete.
+     */
+    private void onBody() {
+        if (mBoxType == DrmPiffParser.BOX_TYPE_FTYP) {
+            mState = (!mRequirePiffBrand || DrmPiffParser.isPiffFile(mBody, 0, mBody.length))
+                    ? STATE_HEADER : STATE_DONE;
+        } else {
+            mPlayReadyObjects = DrmPiffParser.getPlayReadyData(mBody, 0, mBody.length);
+            mState = (mPlayReadyObjects != null) ? STATE_DONE : STATE_HEADER;
+        }
+        mBody = null;
+    }
+}
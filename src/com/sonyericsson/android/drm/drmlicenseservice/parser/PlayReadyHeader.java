@@ -0,0 +1,376 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is DRM License Service.
+ *
+ * The Initial Developer of the Original Code is Sony Mobile Communications Inc.
+ * Portions created by Sony Mobile Communications Inc. are Copyright (C) 2014
+ * Sony Mobile Communications Inc. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package com.sonyericsson.android.drm.drmlicenseservice.parser;
+
+import com.sonyericsson.android.drm.drmlicenseservice.utils.DrmLog;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+/**
+ * Immutable model of a PlayReady header (WRMHEADER).
+ *
+ * The xml is parsed once when the model is created. The header is kept as
+ * text, and the position of the LA_URL value is found by scanning the
+ * tags of the text, so that LA_URL can be replaced without touching the
+ * rest of the header, which must stay as issued. Namespace prefixes and
+ * attributes of the elements do not matter.
+ */
+public class PlayReadyHeader {
+
+    private static final String TAG_KID = "KID";
+
+    private static final String TAG_LA_URL = "LA_URL";
+
+    private static final String TAG_LUI_URL = "LUI_URL";
+
+    private static final String TAG_CUSTOMATTRIBUTES = "CUSTOMATTRIBUTES";
+
+    private final String mXml;
+
+    private final boolean mValid;
+
+    private final String mKid;
+
+    private final String mLaUrl;
+
+    private final String mLuiUrl;
+
+    private final String mCustomAttributes;
+
+    /*
+     * Range of the LA_URL value in mXml, -1 if there is no LA_URL
+     */
+    private final int mLaUrlStart;
+
+    private final int mLaUrlEnd;
+
+    private PlayReadyHeader(String xml, boolean valid, String kid, String laUrl, String luiUrl,
+            String customAttributes, int laUrlStart, int laUrlEnd) {
+        mXml = xml;
+        mValid = valid;
+        mKid = kid;
+        mLaUrl = laUrl;
+        mLuiUrl = luiUrl;
+        mCustomAttributes = customAttributes;
+        mLaUrlStart = laUrlStart;
+        mLaUrlEnd = laUrlEnd;
+    }
+
+    /**
+     * Parses header xml.
+     *
+     * @param xml of header
+     * @return header, or null if xml is null. Use isValid() to check that
+     *         the xml could be parsed.
+     */
+    public static PlayReadyHeader parse(String xml) {
+        DrmLog.debug("start");
+        if (xml == null) {
+            DrmLog.debug("end");
+            return null;
+        }
+        boolean valid = xml.length() > 0;
+        String kid = null, laUrl = null, luiUrl = null, customAttributes = null;
+        try {
+            XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
+            factory.setNamespaceAware(true);
+            XmlPullParser xpp = factory.newPullParser();
+            xpp.setInput(new StringReader(xml));
+            int eventType = xpp.getEventType();
+            StringBuilder text = null;
+            while (eventType != XmlPullParser.END_DOCUMENT) {
+                String name = xpp.getName();
+                switch (eventType) {
+                    case XmlPullParser.START_TAG:
+                        text = new StringBuilder();
+                        if (kid == null && TAG_KID.equals(name)) {
+                            // v4.1 and later keep the KID in an attribute
+                            kid = xpp.getAttributeValue(null, "VALUE");
+                        }
+                        break;
+                    case XmlPullParser.TEXT:
+                        if (text != null) {
+                            text.append(xpp.getText());
+                        }
+                        break;
+                    case XmlPullParser.END_TAG:
+                        if (text != null) {
+                            String value = text.toString().trim();
+                            if (TAG_KID.equals(name) && kid == null) {
+                                kid = value;
+                            } else if (TAG_LA_URL.equals(name) && laUrl == null) {
+                                laUrl = value;
+                            } else if (TAG_LUI_URL.equals(name) && luiUrl == null) {
+                                luiUrl = value;
+                            }
+                        }
+                        text = null;
+                        break;
+                    default:
+                        // do nothing
+                }
+                eventType = xpp.next();
+            }
+        } catch (XmlPullParserException e) {
+            DrmLog.logException(e);
+            valid = false;
+        } catch (IOException e) {
+            DrmLog.logException(e);
+            valid = false;
+        }
+
+        int[] custom = findContent(xml, TAG_CUSTOMATTRIBUTES);
+        if (custom != null) {
+            customAttributes = (custom[0] >= 0) ? xml.substring(custom[0], custom[1]) : "";
+        }
+        int laUrlStart = -1, laUrlEnd = -1;
+        int[] range = (laUrl != null) ? findContent(xml, TAG_LA_URL) : null;
+        if (range != null && range[0] >= 0) {
+            laUrlStart = range[0];
+            laUrlEnd = range[1];
+        } else if (laUrl != null) {
+            DrmLog.debug("position of LA_URL unknown, it can not be replaced");
+        }
+        PlayReadyHeader header = new PlayReadyHeader(xml, valid, kid, laUrl, luiUrl,
+                customAttributes, laUrlStart, laUrlEnd);
+        DrmLog.debug("end");
+        return header;
+    }
+
+    /**
+     * @return true if header is well formed xml
+     */
+    public boolean isValid() {
+        return mValid;
+    }
+
+    /**
+     * @return first KID of header (base64), or null
+     */
+    public String getKid() {
+        return mKid;
+    }
+
+    /**
+     * @return license acquisition url, or null
+     */
+    public String getLaUrl() {
+        return mLaUrl;
+    }
+
+    /**
+     * @return license ui url, or null
+     */
+    public String getLuiUrl() {
+        return mLuiUrl;
+    }
+
+    /**
+     * @return content of CUSTOMATTRIBUTES as xml, or null
+     */
+    public String getCustomAttributes() {
+        return mCustomAttributes;
+    }
+
+    /**
+     * Creates a header with another license acquisition url, e.g. after the
+     * license server has redirected the request. The rest of the header is
+     * kept as is.
+     *
+     * @param laUrl new url, not xml encoded
+     * @return new header, or this header if it has no LA_URL
+     */
+    public PlayReadyHeader withLaUrl(String laUrl) {
+        DrmLog.debug("start");
+        PlayReadyHeader header = this;
+        if (mLaUrlStart >= 0 && laUrl != null) {
+            String encoded = escape(laUrl);
+            String xml = mXml.substring(0, mLaUrlStart) + encoded + mXml.substring(mLaUrlEnd);
+            header = new PlayReadyHeader(xml, mValid, mKid, laUrl, mLuiUrl, mCustomAttributes,
+                    mLaUrlStart, mLaUrlStart + encoded.length());
+        }
+        DrmLog.debug("end");
+        return header;
+    }
+
+    /**
+     * @return header as xml
+     */
+    public String toXml() {
+        return mXml;
+    }
+
+    @Override
+    public String toString() {
+        return mXml;
+    }
+
+    private static String escape(String text) {
+        StringBuilder sb = new StringBuilder(text.length() + 16);
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '&':
+                    sb.append("&amp;");
+                    break;
+                case '<':
+                    sb.append("&lt;");
+                    break;
+                case '>':
+                    sb.append("&gt;");
+                    break;
+                case '"':
+                    sb.append("&quot;");
+                    break;
+                case '\'':
+                    sb.append("&apos;");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /*
+     * Finds the content of the first element with the local name by a plain
+     * scan of the tags, any namespace prefix is ignored. Comments, CDATA
+     * sections and processing instructions are skipped, and '>' in quoted
+     * attribute values does not end a tag.
+     *
+     * @return start and end offset of the content, {-1, -1} if the element
+     *         is empty, or null if it is not found
+     */
+    private static int[] findContent(String xml, String localName) {
+        int contentStart = -1, nameStart = -1, nameLength = 0, nested = 0;
+        int pos = 0;
+        while ((pos = xml.indexOf('<', pos)) >= 0) {
+            int end;
+            if (xml.startsWith("<!--", pos)) {
+                end = xml.indexOf("-->", pos + 4);
+                pos = (end < 0) ? -1 : end + 3;
+            } else if (xml.startsWith("<![CDATA[", pos)) {
+                end = xml.indexOf("]]>", pos + 9);
+                pos = (end < 0) ? -1 : end + 3;
+            } else if (xml.startsWith("<?", pos)) {
+                end = xml.indexOf("?>", pos + 2);
+                pos = (end < 0) ? -1 : end + 2;
+            } else if (xml.startsWith("<!", pos)) {
+                end = xml.indexOf('>', pos + 2);
+                pos = (end < 0) ? -1 : end + 1;
+            } else if (xml.startsWith("</", pos)) {
+                end = xml.indexOf('>', pos + 2);
+                if (end < 0) {
+                    return null;
+                }
+                if (contentStart >= 0 && nameEnd(xml, pos + 2, end) - pos - 2 == nameLength
+                        && xml.regionMatches(pos + 2, xml, nameStart, nameLength)) {
+                    if (nested == 0) {
+                        return new int[] {
+                                contentStart, pos
+                        };
+                    }
+                    nested--;
+                }
+                pos = end + 1;
+            } else {
+                end = tagEnd(xml, pos + 1);
+                if (end < 0) {
+                    return null;
+                }
+                int nameEnd = nameEnd(xml, pos + 1, end);
+                boolean empty = xml.charAt(end - 1) == '/';
+                if (contentStart >= 0) {
+                    if (!empty && nameEnd - pos - 1 == nameLength
+                            && xml.regionMatches(pos + 1, xml, nameStart, nameLength)) {
+                        nested++;
+                    }
+                } else if (isLocalName(xml, pos + 1, nameEnd, localName)) {
+                    if (empty) {
+                        return new int[] {
+                                -1, -1
+                        };
+                    }
+                    contentStart = end + 1;
+                    nameStart = pos + 1;
+                    nameLength = nameEnd - pos - 1;
+                }
+                pos = end + 1;
+            }
+            if (pos < 0) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isLocalName(String s, int start, int end, String localName) {
+        int colon = s.lastIndexOf(':', end - 1);
+        if (colon >= start) {
+            start = colon + 1;
+        }
+        return localName.length() == end - start
+                && s.regionMatches(start, localName, 0, end - start);
+    }
+
+    /*
+     * @return position of '>' ending the start tag, '>' in quoted attribute
+     *         values is skipped
+     */
+    private static int tagEnd(String s, int pos) {
+        char quote = 0;
+        for (int i = pos; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+            } else if (c == '>') {
+                return i;
+            } else if (c == '<') {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    private static int nameEnd(String s, int pos, int end) {
+        while (pos < end) {
+            char c = s.charAt(pos);
+            if (c == '/' || c == ' ' || c == '\t' || c == '\r' || c == '\n') {
+                break;
+            }
+            pos++;
+        }
+        return pos;
+    }
+}
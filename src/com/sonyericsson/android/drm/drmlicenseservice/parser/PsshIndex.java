@@ -0,0 +1,82 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is DRM License Service.
+ *
+ * The Initial Developer of the Original Code is Sony Mobile Communications Inc.
+ * Portions created by Sony Mobile Communications Inc. are Copyright (C) 2014
+ * Sony Mobile Communications Inc. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package com.sonyericsson.android.drm.drmlicenseservice.parser;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Index of all protection system specific header boxes in moov, CENC pssh
+ * (version 0 and 1) as well as the PIFF uuid variant, in file order.
+ */
+public class PsshIndex {
+
+    private List<Boxes.ProtSysSpecificHeaderBox> mBoxes =
+            new ArrayList<Boxes.ProtSysSpecificHeaderBox>();
+
+    private HashMap<Uuid, Boxes.ProtSysSpecificHeaderBox> mBySystemId =
+            new HashMap<Uuid, Boxes.ProtSysSpecificHeaderBox>();
+
+    private static final Uuid PLAYREADY = new Uuid(DrmPiffParser.PLAYREADY_SYSTEM_ID);
+
+    void add(Boxes.ProtSysSpecificHeaderBox box) {
+        mBoxes.add(box);
+        Boxes.ProtSysSpecificHeaderBox previous = mBySystemId.get(box.systemId);
+        // The PIFF box is preferred over a pssh for the same system, as it
+        // always has been for PlayReady.
+        if (previous == null || !isPiff(previous) && isPiff(box)) {
+            mBySystemId.put(box.systemId, box);
+        }
+    }
+
+    /**
+     * @return all boxes in file order
+     */
+    public List<Boxes.ProtSysSpecificHeaderBox> getBoxes() {
+        return Collections.unmodifiableList(mBoxes);
+    }
+
+    /**
+     * @param systemId of protection system
+     * @return box for system, or null if file has none
+     */
+    public Boxes.ProtSysSpecificHeaderBox get(Uuid systemId) {
+        return mBySystemId.get(systemId);
+    }
+
+    /**
+     * @return PlayReady Objects, or null if file has no PlayReady box
+     */
+    public byte[] getPlayReadyObjects() {
+        Boxes.ProtSysSpecificHeaderBox box = mBySystemId.get(PLAYREADY);
+        return (box != null) ? box.data : null;
+    }
+
+    private static boolean isPiff(Boxes.ProtSysSpecificHeaderBox box) {
+        return box.boxType.type == DrmPiffParser.BOX_TYPE_UUID;
+    }
+}
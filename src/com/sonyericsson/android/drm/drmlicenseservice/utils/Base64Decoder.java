@@ -0,0 +1,96 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is DRM License Service.
+ *
+ * The Initial Developer of the Original Code is Sony Mobile Communications Inc.
+ * Portions created by Sony Mobile Communications Inc. are Copyright (C) 2014
+ * Sony Mobile Communications Inc. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package com.sonyericsson.android.drm.drmlicenseservice.utils;
+
+/**
+ * Incremental base64 decoder. Text can be added in pieces of any size,
+ * whitespace is ignored, and decoded bytes are appended to an internal buffer.
+ */
+public class Base64Decoder {
+
+    private static final int[] DECODE_TABLE = new int[128];
+
+    static {
+        for (int i = 0; i < DECODE_TABLE.length; i++) {
+            DECODE_TABLE[i] = -1;
+        }
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++) {
+            DECODE_TABLE[alphabet.charAt(i)] = i;
+        }
+    }
+
+    private ByteArrayBuffer mOutput;
+
+    private int mBits = 0;
+
+    private int mBitCount = 0;
+
+    private boolean mPadding = false;
+
+    private boolean mError = false;
+
+    public Base64Decoder() {
+        mOutput = new ByteArrayBuffer(1024);
+    }
+
+    /**
+     * Decodes next part of the text.
+     *
+     * @param text base64 encoded characters
+     * @return false if text contained invalid characters
+     */
+    public boolean update(CharSequence text) {
+        int length = text.length();
+        for (int i = 0; i < length && !mError; i++) {
+            char c = text.charAt(i);
+            if (c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+                continue;
+            }
+            if (c == '=') {
+                mPadding = true;
+                continue;
+            }
+            int value = (c < DECODE_TABLE.length) ? DECODE_TABLE[c] : -1;
+            if (value < 0 || mPadding) {
+                mError = true;
+                break;
+            }
+            mBits = ((mBits << 6) | value) & 0xFFFF;
+            mBitCount += 6;
+            if (mBitCount >= 8) {
+                mBitCount -= 8;
+                mOutput.append((byte)(mBits >> mBitCount));
+            }
+        }
+        return !mError;
+    }
+
+    /**
+     * @return decoded data, or null if the text was not valid base64
+     */
+    public byte[] toByteArray() {
+        return mError ? null : mOutput.toByteArray();
+    }
+}
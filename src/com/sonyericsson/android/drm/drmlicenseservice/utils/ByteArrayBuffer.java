@@ -44,6 +44,13 @@ public class ByteArrayBuffer {
         }
     }
 
+    public void append(byte value) {
+        if (mDest.length == mPosition) {
+            extend();
+        }
+        mDest[mPosition++] = value;
+    }
+
     private void extend() {
         byte[] newDest = new byte[(mDest.length * 2)];
         System.arraycopy(mDest, 0, newDest, 0, mPosition);
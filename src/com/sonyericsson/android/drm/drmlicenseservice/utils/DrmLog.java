@@ -57,7 +57,12 @@ public class DrmLog {
         String className = fullClassName.substring(fullClassName.lastIndexOf(".") + 1);
         String methodName = Thread.currentThread().getStackTrace()[i].getMethodName();
         int line = Thread.currentThread().getStackTrace()[i].getLineNumber();
-        Log.e(Constants.LOGTAG, className + "." + methodName + ":" + line + " " + message);
+        try {
+            Log.e(Constants.LOGTAG, className + "." + methodName + ":" + line + " " + message);
+        } catch (LinkageError e) {
+            // Not running on Android, e.g. the parser used from command line
+            System.err.println(className + "." + methodName + ":" + line + " " + message);
+        }
     }
 
     public static void logException(Exception e) {
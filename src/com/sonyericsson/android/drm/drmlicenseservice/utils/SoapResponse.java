@@ -0,0 +1,419 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is DRM License Service.
+ *
+ * The Initial Developer of the Original Code is Sony Mobile Communications Inc.
+ * Portions created by Sony Mobile Communications Inc. are Copyright (C) 2015
+ * Sony Mobile Communications Inc. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package com.sonyericsson.android.drm.drmlicenseservice.utils;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.util.Arrays;
+
+/**
+ * Response of a license or domain request.
+ *
+ * The response is decoded to text once, that text is what is handed to
+ * MediaDrm. The fields needed by the service (CustomData, StatusCode,
+ * RedirectUrl, ServiceId, AccountId and Revision) are then read in one pass
+ * over the text. Only the text of those elements is copied, other elements
+ * are just checked for matching start and end tags.
+ */
+public class SoapResponse {
+
+    public static final int CUSTOM_DATA = 0;
+    public static final int STATUS_CODE = 1;
+    public static final int REDIRECT_URL = 2;
+    public static final int SERVICE_ID = 3;
+    public static final int ACCOUNT_ID = 4;
+    public static final int REVISION = 5;
+
+    private static final String[] FIELD_NAMES = new String[] {
+            "CustomData", "StatusCode", "RedirectUrl", "ServiceId", "AccountId", "Revision"
+    };
+
+    private static final int INITIAL_DEPTH = 16;
+
+    private static final int MAX_DECLARATION_SIZE = 256;
+
+    private final String mText;
+
+    private final String[] mValues = new String[FIELD_NAMES.length];
+
+    private boolean mValid = false;
+
+    /*
+     * Start and length of the names of the open elements
+     */
+    private int[] mNameStarts = new int[INITIAL_DEPTH];
+
+    private int[] mNameLengths = new int[INITIAL_DEPTH];
+
+    private int mDepth = 0;
+
+    private SoapResponse(String text) {
+        mText = text;
+    }
+
+    /**
+     * Decodes and parses a response. The encoding is taken from a byte order
+     * mark, or else from the encoding of the xml declaration, or else UTF-8
+     * is used.
+     *
+     * @param data of http response
+     * @return parsed response, or null if data is null
+     */
+    public static SoapResponse parse(byte[] data) {
+        DrmLog.debug("start");
+        SoapResponse response = null;
+        if (data != null) {
+            String encoding = getEncoding(data);
+            try {
+                response = new SoapResponse(new String(data, encoding));
+                response.scan();
+            } catch (UnsupportedEncodingException e) {
+                DrmLog.logException(e);
+            }
+        }
+        DrmLog.debug("end");
+        return response;
+    }
+
+    /*
+     * Detects encoding as described in appendix F of the xml specification,
+     * for the encodings that can be expected in a response.
+     */
+    private static String getEncoding(byte[] data) {
+        String encoding = "UTF-8";
+        int b0 = (data.length > 0) ? data[0] & 0xFF : -1;
+        int b1 = (data.length > 1) ? data[1] & 0xFF : -1;
+        if ((b0 == 0xFE && b1 == 0xFF) || (b0 == 0x00 && b1 == '<')) {
+            encoding = "UTF-16BE";
+        } else if ((b0 == 0xFF && b1 == 0xFE) || (b0 == '<' && b1 == 0x00)) {
+            encoding = "UTF-16LE";
+        } else if (b0 == '<' && b1 == '?') {
+            // The declaration itself is ASCII in all ASCII compatible encodings
+            String declaration;
+            try {
+                declaration = new String(data, 0, Math.min(data.length, MAX_DECLARATION_SIZE),
+                        "ISO-8859-1");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+            int end = declaration.indexOf("?>");
+            String name = (declaration.startsWith("<?xml") && end > 0)
+                    ? getPseudoAttribute(declaration.substring(0, end), "encoding") : null;
+            if (name != null) {
+                try {
+                    if (Charset.isSupported(name)) {
+                        encoding = name;
+                    } else {
+                        DrmLog.debug("unsupported encoding " + name + ", using UTF-8");
+                    }
+                } catch (IllegalCharsetNameException e) {
+                    DrmLog.debug("invalid encoding " + name + ", using UTF-8");
+                }
+            }
+        }
+        return encoding;
+    }
+
+    /*
+     * @return value of name="value" or name='value' in declaration, or null
+     */
+    private static String getPseudoAttribute(String declaration, String name) {
+        int pos = declaration.indexOf(name);
+        if (pos < 0) {
+            return null;
+        }
+        pos += name.length();
+        while (pos < declaration.length() && declaration.charAt(pos) != '=') {
+            pos++;
+        }
+        pos++;
+        while (pos < declaration.length() && isWhitespace(declaration, pos, pos + 1)) {
+            pos++;
+        }
+        if (pos >= declaration.length()) {
+            return null;
+        }
+        char quote = declaration.charAt(pos);
+        int end = (quote == '"' || quote == '\'') ? declaration.indexOf(quote, pos + 1) : -1;
+        return (end > 0) ? declaration.substring(pos + 1, end) : null;
+    }
+
+    /**
+     * @return decoded response
+     */
+    public String getText() {
+        return mText;
+    }
+
+    /**
+     * @return true if the response is well formed xml
+     */
+    public boolean isValid() {
+        return mValid;
+    }
+
+    /**
+     * @param field one of CUSTOM_DATA, STATUS_CODE, REDIRECT_URL, SERVICE_ID,
+     *            ACCOUNT_ID or REVISION
+     * @return trimmed text of last element with the field name, in any
+     *         namespace, or null if not present
+     */
+    public String get(int field) {
+        return mValues[field];
+    }
+
+    private void scan() {
+        String s = mText;
+        int length = s.length();
+        int pos = 0;
+        boolean root = false;
+        StringBuilder text = null;
+        int textField = -1, textDepth = -1;
+        if (length > 0 && s.charAt(0) == '\uFEFF') {
+            pos++;
+        }
+        while (pos < length) {
+            int end;
+            if (s.charAt(pos) != '<') {
+                end = s.indexOf('<', pos);
+                if (end < 0) {
+                    end = length;
+                }
+                if (mDepth == 0 && !isWhitespace(s, pos, end)) {
+                    // text outside of root element
+                    return;
+                }
+                if (!appendText(text, s, pos, end)) {
+                    return;
+                }
+                pos = end;
+            } else if (s.startsWith("<!--", pos)) {
+                end = s.indexOf("-->", pos + 4);
+                if (end < 0) {
+                    return;
+                }
+                pos = end + 3;
+            } else if (s.startsWith("<![CDATA[", pos)) {
+                end = s.indexOf("]]>", pos + 9);
+                if (end < 0 || mDepth == 0) {
+                    return;
+                }
+                if (text != null) {
+                    text.append(s, pos + 9, end);
+                }
+                pos = end + 3;
+            } else if (s.startsWith("<?", pos)) {
+                end = s.indexOf("?>", pos + 2);
+                if (end < 0) {
+                    return;
+                }
+                pos = end + 2;
+            } else if (s.startsWith("<!", pos)) {
+                // DOCTYPE, internal subsets are not expected in responses
+                end = s.indexOf('>', pos + 2);
+                if (end < 0 || mDepth > 0) {
+                    return;
+                }
+                pos = end + 1;
+            } else if (s.startsWith("</", pos)) {
+                end = s.indexOf('>', pos + 2);
+                int nameEnd = nameEnd(s, pos + 2, end);
+                if (end < 0 || mDepth == 0 || !isWhitespace(s, nameEnd, end)
+                        || nameEnd - pos - 2 != mNameLengths[mDepth - 1]
+                        || !s.regionMatches(pos + 2, s, mNameStarts[mDepth - 1],
+                                nameEnd - pos - 2)) {
+                    return;
+                }
+                if (mDepth == textDepth) {
+                    mValues[textField] = text.toString().trim();
+                    text = null;
+                    textDepth = -1;
+                }
+                mDepth--;
+                pos = end + 1;
+            } else {
+                if (mDepth == 0 && root) {
+                    // second root element
+                    return;
+                }
+                end = tagEnd(s, pos + 1);
+                if (end < 0) {
+                    return;
+                }
+                int nameEnd = nameEnd(s, pos + 1, end);
+                boolean empty = s.charAt(end - 1) == '/';
+                if (nameEnd == pos + 1) {
+                    return;
+                }
+                root = true;
+                if (!empty) {
+                    push(pos + 1, nameEnd - pos - 1);
+                    if (text == null) {
+                        int field = findField(s, pos + 1, nameEnd);
+                        if (field >= 0) {
+                            text = new StringBuilder();
+                            textField = field;
+                            textDepth = mDepth;
+                        }
+                    }
+                }
+                pos = end + 1;
+            }
+        }
+        mValid = root && mDepth == 0;
+    }
+
+    private void push(int nameStart, int nameLength) {
+        if (mDepth == mNameStarts.length) {
+            mNameStarts = Arrays.copyOf(mNameStarts, mDepth * 2);
+            mNameLengths = Arrays.copyOf(mNameLengths, mDepth * 2);
+        }
+        mNameStarts[mDepth] = nameStart;
+        mNameLengths[mDepth] = nameLength;
+        mDepth++;
+    }
+
+    /*
+     * Matches the local name, any namespace prefix is ignored.
+     */
+    private static int findField(String s, int start, int end) {
+        int colon = s.lastIndexOf(':', end - 1);
+        if (colon >= start) {
+            start = colon + 1;
+        }
+        for (int i = 0; i < FIELD_NAMES.length; i++) {
+            String name = FIELD_NAMES[i];
+            if (name.length() == end - start && s.regionMatches(start, name, 0, end - start)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /*
+     * @return position of '>' ending the start tag, '>' in quoted attribute
+     *         values is skipped
+     */
+    private static int tagEnd(String s, int pos) {
+        char quote = 0;
+        for (int i = pos; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+            } else if (c == '>') {
+                return i;
+            } else if (c == '<') {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    private static int nameEnd(String s, int pos, int end) {
+        if (end < 0) {
+            return pos;
+        }
+        while (pos < end) {
+            char c = s.charAt(pos);
+            if (c == '/' || c == ' ' || c == '\t' || c == '\r' || c == '\n') {
+                break;
+            }
+            pos++;
+        }
+        return pos;
+    }
+
+    private static boolean isWhitespace(String s, int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c != ' ' && c != '\t' && c != '\r' && c != '\n') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Appends text, resolving character and predefined entity references.
+     * With a null builder the references are only checked.
+     *
+     * @return false if an entity reference is malformed
+     */
+    private static boolean appendText(StringBuilder text, String s, int start, int end) {
+        int pos = start;
+        int amp;
+        while ((amp = s.indexOf('&', pos)) >= 0 && amp < end) {
+            int semicolon = s.indexOf(';', amp);
+            int codePoint = (semicolon > 0 && semicolon < end)
+                    ? resolveReference(s, amp + 1, semicolon) : -1;
+            if (codePoint < 0) {
+                return false;
+            }
+            if (text != null) {
+                text.append(s, pos, amp).appendCodePoint(codePoint);
+            }
+            pos = semicolon + 1;
+        }
+        if (text != null) {
+            text.append(s, pos, end);
+        }
+        return true;
+    }
+
+    /*
+     * @return character of reference between '&' and ';', or -1 if unknown
+     */
+    private static int resolveReference(String s, int start, int end) {
+        int res = -1;
+        if (s.startsWith("amp", start) && end - start == 3) {
+            res = '&';
+        } else if (s.startsWith("lt", start) && end - start == 2) {
+            res = '<';
+        } else if (s.startsWith("gt", start) && end - start == 2) {
+            res = '>';
+        } else if (s.startsWith("quot", start) && end - start == 4) {
+            res = '"';
+        } else if (s.startsWith("apos", start) && end - start == 4) {
+            res = '\'';
+        } else if (s.startsWith("#", start) && end - start > 1) {
+            try {
+                res = (s.charAt(start + 1) == 'x')
+                        ? Integer.parseInt(s.substring(start + 2, end), 16)
+                        : Integer.parseInt(s.substring(start + 1, end));
+            } catch (NumberFormatException e) {
+                res = -1;
+            }
+            if (!Character.isValidCodePoint(res)) {
+                res = -1;
+            }
+        }
+        return res;
+    }
+}
@@ -23,9 +23,6 @@
 
 package com.sonyericsson.android.drm.drmlicenseservice.utils;
 
-import java.io.InputStreamReader;
-import java.io.ByteArrayInputStream;
-
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -49,39 +46,4 @@ public class Utils {
         }
         return result;
     }
-
-    /*
-     * Helper function to convert byte array to inputstream reader.
-     * Checks for utf-8 or utf-16 ByteOrderMarks
-     */
-    public static InputStreamReader getInputStreamReader(byte[] bytes) {
-        InputStreamReader res = null;
-        String enc = "UTF-8"; // deault character encoding
-        InputStream is = new ByteArrayInputStream(bytes);
-        if (is != null) {
-            try {
-                int rc = 0, chk = 0;
-                is.mark(0);
-                while (rc < 4) {
-                    int i = is.read();
-                    if (i == -1) {
-                        break;
-                    }
-                    chk = (chk << 8) | i;
-                    rc++;
-                }
-                if ((chk & 0x0ffff0000) == 0x0FEFF0000) {
-                    enc = "UTF-16BE";
-                }
-                else if ((chk & 0x0ffff0000) == 0x0fffe0000) {
-                    enc = "UTF-16LE";
-                }
-                is.reset();
-                res = new InputStreamReader(is, enc);
-            } catch (IOException e) {
-                DrmLog.logException(e);
-            }
-        }
-        return res;
-    }
 }
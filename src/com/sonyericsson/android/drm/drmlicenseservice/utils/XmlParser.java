@@ -27,132 +27,93 @@ import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlPullParserFactory;
 import java.io.InputStream;
-import java.io.ByteArrayInputStream;
-import java.io.File;
-import java.io.FileInputStream;
 
 import java.io.IOException;
-import java.util.ArrayDeque;
 import java.util.HashMap;
 
 /**
- * Generic XML parser for any Data.
- *
- * Note: in case there are two identical tags the text will be concatenated.
+ * XML parsers for manifests and web initiators. License and domain
+ * responses are parsed by SoapResponse.
  */
 public class XmlParser {
 
-    public static String parseXml(String xml, String tag) {
-        String res = null;
-        if (xml != null && xml.length() > 0) {
-            HashMap<String,String> values = parseXmlToMap(new ByteArrayInputStream(xml.getBytes()),
-                tag);
-            if (values != null) {
-                res = values.get(tag);
-            }
-        }
-        return res;
-    }
-
-    public static String parseXml(File file, String tag) {
-        String res = null;
-        try {
-            InputStream is = new FileInputStream(file);
-            HashMap<String,String> values = parseXmlToMap(is, tag);
-            is.close();
-            if (values != null) {
-                res = values.get(tag);
-            }
-        } catch (IOException e) {
-            DrmLog.logException(e);
-        }
-        return res;
-    }
-
-    public static String parseXml(byte[] data, String tag) {
-        String res = null;
-        if (data != null) {
-            InputStream is = new ByteArrayInputStream(data);
-            HashMap<String,String> values = parseXmlToMap(is, tag);
-            try {
-                is.close();
-            } catch (IOException e) {}
-            if (values != null) {
-                res = values.get(tag);
-            }
-        }
-        return res;
-    }
-
-    public static HashMap<String, String> parseXml(byte[] data) {
-        HashMap<String,String> res = null;
-        if (data != null) {
-            InputStream is = new ByteArrayInputStream(data);
-            res = parseXmlToMap(is, null);
-            try {
-                is.close();
-            } catch (IOException e) {}
-        }
-        return res;
-    }
+    /**
+     * Receives text of an element while it is being parsed.
+     */
+    public interface TextHandler {
 
-    public static HashMap<String, String> parseXml(String xml) {
-        HashMap<String,String> res = null;
-        if (xml != null && xml.length() > 0) {
-            res = parseXmlToMap(new ByteArrayInputStream(xml.getBytes()), null);
-        }
-        return res;
+        /**
+         * @param text next part of element text
+         * @return false to abort parsing
+         */
+        public boolean handleText(String text);
     }
 
-    private static HashMap<String, String> parseXmlToMap(InputStream is, String tag) {
-        HashMap<String, String> res = new HashMap<String, String>();
-        XmlPullParserFactory factory;
+    /**
+     * Parses xml from stream until the end tag of the first element named
+     * tag. The text of that element is handed to handler as it is parsed,
+     * nothing else is stored and the rest of the stream is not read.
+     *
+     * @return true if the element was found and completely parsed
+     */
+    public static boolean parseElementText(InputStream is, String tag, TextHandler handler) {
+        boolean res = false;
         try {
-            factory = XmlPullParserFactory.newInstance();
+            XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
             factory.setNamespaceAware(true);
             XmlPullParser xpp = factory.newPullParser();
             xpp.setInput(is, null); // Let XmlPullParser handle charset parsing
             int eventType = xpp.getEventType();
-            StringBuffer tagBuffer = null;
+            int tagDepth = -1;
             while (eventType != XmlPullParser.END_DOCUMENT) {
-                switch (eventType) {
-                    case XmlPullParser.START_TAG:
-                        break;
-                    case XmlPullParser.TEXT:
-                        if (tagBuffer == null) {
-                            tagBuffer = new StringBuffer();
-                        }
-                        tagBuffer.append(xpp.getText());
+                if (eventType == XmlPullParser.START_TAG) {
+                    if (tagDepth < 0 && tag.equals(xpp.getName())) {
+                        tagDepth = xpp.getDepth();
+                    }
+                } else if (eventType == XmlPullParser.TEXT) {
+                    if (tagDepth > 0 && !handler.handleText(xpp.getText())) {
                         break;
-                    case XmlPullParser.END_TAG:
-                        if (tagBuffer != null) {
-                            res.put(xpp.getName(), tagBuffer.toString().trim());
-                            tagBuffer = null;
-                            if (tag != null && xpp.getName().toLowerCase().equals(
-                                    tag.toLowerCase())) {
-                                DrmLog.debug("found tag, return");
-                                return res;
-                            }
-                        }
+                    }
+                } else if (eventType == XmlPullParser.END_TAG) {
+                    if (tagDepth > 0 && xpp.getDepth() == tagDepth) {
+                        DrmLog.debug("found tag, return");
+                        res = true;
                         break;
-                    default:
-                        // do nothing
+                    }
                 }
                 eventType = xpp.next();
             }
         } catch (XmlPullParserException e) {
-            DrmLog.debug("res size " + res.size());
             DrmLog.logException(e);
-            res = null; // parsing failed, clear result even if some tags was parsed.
         } catch (IOException e) {
             DrmLog.logException(e);
-            res = null;
         }
         return res;
     }
 
-    public static ArrayDeque<HashMap<String, String>> parseWebInitiator(byte[] data) {
-        ArrayDeque<HashMap<String, String>> res = new ArrayDeque<HashMap<String, String>>();
+    /**
+     * Receives the groups of a web initiator while it is being parsed.
+     */
+    public interface ItemHandler {
+
+        /**
+         * @param item values of a group, "type" holds the element name
+         * @return false to stop parsing
+         */
+        public boolean handleItem(HashMap<String, String> item);
+    }
+
+    /**
+     * Parses a web initiator from stream. Each group is handed to handler
+     * as soon as its end tag is parsed, so that it can be handled while
+     * the rest of the initiator is still being read.
+     *
+     * @return false if the initiator is not valid xml, groups before the
+     *         error have already been handled
+     */
+    public static boolean parseWebInitiator(InputStream is, ItemHandler handler) {
+        boolean res = false;
+        boolean root = false;
         HashMap<String, String> item = null;
         StringBuffer headerBuffer = null;
         StringBuffer tagBuffer = null;
@@ -162,11 +123,13 @@ public class XmlParser {
             factory = XmlPullParserFactory.newInstance();
             factory.setNamespaceAware(true);
             XmlPullParser xpp = factory.newPullParser();
-            xpp.setInput(new ByteArrayInputStream(data), null);
+            xpp.setInput(is, null);
             int eventType = xpp.getEventType();
-            while (eventType != XmlPullParser.END_DOCUMENT) {
+            boolean stopped = false;
+            while (eventType != XmlPullParser.END_DOCUMENT && !stopped) {
                 switch (eventType) {
                     case XmlPullParser.START_TAG:
+                        root = true;
                         if (xpp.getDepth() == 2) {
                             item = new HashMap<String, String>();
                             item.put("type", xpp.getName());
@@ -219,7 +182,7 @@ public class XmlParser {
                         }
                         if (xpp.getDepth() == 2) {
                             if (item != null) {
-                                res.add(item);
+                                stopped = !handler.handleItem(item);
                                 item = null;
                             }
                         }
@@ -227,21 +190,17 @@ public class XmlParser {
                     default:
                         // do nothing
                 }
-                eventType = xpp.next();
+                if (!stopped) {
+                    eventType = xpp.next();
+                }
             }
+            res = root;
         } catch (XmlPullParserException e) {
             DrmLog.logException(e);
-            res = null; // parsing failed, clear result even if some tags was parsed.
         } catch (IOException e) {
             DrmLog.logException(e);
-            res = null;
         }
         return res;
     }
 
-    public static boolean isValidXml(String mHeader) {
-        DrmLog.debug("isXmlValid " + mHeader);
-        return parseXml(mHeader) != null;
-    }
-
 }